@@ -1,48 +1,53 @@
 package gitlet;
 
+import gitlet.util.LogOptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import static gitlet.util.MyUtils.exit;
 
 
 public class Main {
 
     /**
-     * gitletmain̨
+     * gitlet的main函数，控制台传参数
      */
     public static void main(String[] args) {
-        //жǷвûо˳
+        //判断是否有命令行参数，没有就退出
         if (args.length == 0) {
             exit("Please enter a command.");
         }
-        // ȡһ
+        // 获取第一个参数（命令符）
         String firstArg = args[0];
         String fileName;
         String message;
         String branchName;
         switch (firstArg) {
-            // ʼֿ
+            // 初始化仓库
             case "init":
-                // Ԥ
+                // 符合预期
                 validateNumArgs(args, 1);
                 Repository.init();
                 break;
-            // ļݴ
+            // 添加文件到暂存区
             case "add":
-                // .gitletļͲ
+                // 检查.gitlet文件和参数数量
                 Repository.checkWorkingDir();
                 validateNumArgs(args, 2);
                 fileName = args[1];
                 new Repository().add(fileName);
                 break;
-            // ύ
+            // 提交内容
             case "commit":
                 Repository.checkWorkingDir();
                 validateNumArgs(args, 2);
-                // ύĽϢ
+                // 提交的介绍信息
                 message = args[1];
                 if (message.length() == 0) {
                     exit("Please enter a commit message.");
                 }
-                // ύ
+                // 创建提交
                 new Repository().commit(message);
                 break;
             case "rm" :
@@ -53,16 +58,24 @@ public class Main {
                 break;
             case "log" :
                 Repository.checkWorkingDir();
-                validateNumArgs(args, 1);
-                new Repository().log();
+                // log [-n count] [--skip count] [--since date] [--until date]
+                new Repository().log(LogOptions.parse(args, 1));
                 break;
             case "global-log" :
                 Repository.checkWorkingDir();
-                validateNumArgs(args, 1);
-                Repository.globalLog();
+                Repository.globalLog(LogOptions.parse(args, 1));
                 break;
             case "find" :
                 Repository.checkWorkingDir();
+                // find --rebuild-index：重建 message 的索引；find --word [word]：按词查找
+                if (args.length == 2 && args[1].equals("--rebuild-index")) {
+                    Repository.rebuildMessageIndex();
+                    break;
+                }
+                if (args.length == 3 && args[1].equals("--word")) {
+                    Repository.findWord(args[2]);
+                    break;
+                }
                 validateNumArgs(args, 2);
                 message = args[1];
                 if (message.length() == 0) {
@@ -79,10 +92,10 @@ public class Main {
                 Repository.checkWorkingDir();
                 Repository repository = new Repository();
                 /**
-                 * checkout Ƚϸӣ
-                 * 1checkout C [filename]ˣõǰcommit ָ|д ļ
-                 * 2checkout [commitID] C [filename]ָcommitfile ָ|д
-                 * 3checkout [branchname]лbranch֧
+                 * checkout 命令比较复杂，有三种情况：
+                 * （1）checkout – [filename]：改完后悔了，用当前commit 恢复|重写 文件内容
+                 * （2）checkout [commitID] – [filename]：用指定commit的file 恢复|重写
+                 * （3）checkout [branchname]：切换branch分支
                  */
                 switch (args.length) {
                     case 3 :
@@ -90,7 +103,7 @@ public class Main {
                             exit("Incorrect operands.");
                         }
                         fileName = args[2];
-                        // checkout C [filename]
+                        // checkout – [filename]
                         repository.checkout(fileName);
                         break;
                     case 4 :
@@ -133,16 +146,60 @@ public class Main {
                 branchName = args[1];
                 new Repository().merge(branchName);
                 break;
+            case "diff" :
+                Repository.checkWorkingDir();
+                // diff [--cached] | diff [commit] [commit]
+                if (args.length > 3) {
+                    exit("Incorrect operands.");
+                }
+                if (args.length == 2 && args[1].equals("--cached")) {
+                    new Repository().diff(new ArrayList<>(), true);
+                } else {
+                    new Repository().diff(Arrays.asList(args).subList(1, args.length), false);
+                }
+                break;
+            case "merge-base" :
+                Repository.checkWorkingDir();
+                validateNumArgs(args, 3);
+                Repository.mergeBase(args[1], args[2]);
+                break;
+            case "rev-list" :
+                Repository.checkWorkingDir();
+                if (args.length < 2) {
+                    exit("Incorrect operands.");
+                }
+                Repository.revList(Arrays.copyOfRange(args, 1, args.length));
+                break;
+            case "gc" :
+                Repository.checkWorkingDir();
+                validateNumArgs(args, 1);
+                new Repository().gc();
+                break;
+            case "pack-refs" :
+                Repository.checkWorkingDir();
+                validateNumArgs(args, 1);
+                Repository.packRefs();
+                break;
+            case "fsmonitor" :
+                Repository.checkWorkingDir();
+                validateNumArgs(args, 1);
+                new Repository().fsmonitor();
+                break;
+            case "migrate" :
+                Repository.checkWorkingDir();
+                validateNumArgs(args, 1);
+                new Repository().migrate();
+                break;
             default:
-                exit("ûʵ");
+                exit("没实现");
                 break;
         }
     }
 
     /**
-     * ǷԤ
-     * @param args 
-     * @param n    Ĳ
+     * 检查参数数量是否符合预期
+     * @param args 输入的命令
+     * @param n    期望的参数数量
      */
     private static void validateNumArgs(String[] args, int n) {
         if (args.length != n) {
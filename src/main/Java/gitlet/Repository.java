@@ -3,75 +3,138 @@ package gitlet;
 import gitlet.bean.Blob;
 import gitlet.bean.Commit;
 import gitlet.bean.StagingArea;
-
-import java.io.File;
+import gitlet.bean.Tree;
+import gitlet.util.CommitGraph;
+import gitlet.util.Config;
+import gitlet.util.Diff;
+import gitlet.util.FsMonitor;
+import gitlet.util.Lines;
+import gitlet.util.Merge3;
+import gitlet.util.LogOptions;
+import gitlet.util.MessageIndex;
+import gitlet.util.ObjectCodec;
+import gitlet.util.PackFile;
+import gitlet.util.PackWriter;
+import gitlet.util.Prefetcher;
+import gitlet.util.Refs;
+import gitlet.util.WriteTransaction;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.zip.Deflater;
 
 import static gitlet.bean.StagingArea.rm;
 import static gitlet.util.MyUtils.*;
 import static gitlet.util.Utils.*;
 
-// gitlet 洢⣬ʵgitletĴ󲿷߼
+// gitlet 存储库，实现gitlet的大部分逻辑
 public class Repository {
 
     /**
-     * ɵgitlet·
+     * 生成的gitlet的路径：
      * [user.dir]
-     *  .gitlet
-     *      refs
-     *         heads
-     *      objects
-     */
-    // Javaʱ·
-    private static final File CWD = new File(System.getProperty("user.dir"));
-    //  .gitlet·,汾ڵ·
-    private static final File GITLET_DIR = join(CWD, ".gitlet");
-    // refs(洢֧ĩϢheadsļУ洢֧ύ)
+     * └── .gitlet
+     *     ├── refs
+     *     │   └── heads
+     *     ├── packed-refs
+     *     └── objects
+     */
+    // 返回Java程序运行时的路径
+    public static final File CWD = new File(System.getProperty("user.dir"));
+    //  .gitlet路径,版本控制所在的路径
+    public static final File GITLET_DIR = join(CWD, ".gitlet");
+    // refs(存储分支的末端信息，里面有heads文件夹，存储分支的最后的提交)
     private static final File REFS_DIR = join(GITLET_DIR, "refs");
-    // gitletobjectļУobjectĳ־ûblobcommit
+    // gitlet下面的object文件夹，包含各种object对象的持久化（blob，commit）
     public static final File OBJECTS_DIR = join(GITLET_DIR, "objects");
-    //  refs£洢֧ǰcommit
-    private static final File BRANCH_HEADS_DIR = join(REFS_DIR, "heads");
-    // ĬϷ֧ : master
+    // 在 refs下，存储各个分支当前的commit
+    public static final File BRANCH_HEADS_DIR = join(REFS_DIR, "heads");
+    // gc 时 generation 是它的整数倍的 commit 也写可达位图（除了各分支的头）
+    private static final int BITMAP_INTERVAL = 100;
+    // diff 时修改前后各显示几行上下文
+    private static final int DIFF_CONTEXT = 3;
+    // 默认分支 : master
     private static final String DEFAULT_BRANCH_NAME = "master";
-    // .gitlet HEADļ¼ǰύ汾
+    // .gitlet 下面的HEAD文件，记录当前的提交版本
     private static final File HEAD = join(GITLET_DIR, "HEAD");
-    // ¼ "ref: refs/heads/" һ̶ǰ׺
+    // 记录 "ref: refs/heads/" 这样一个固定前缀
     private static final String HEAD_BRANCH_REF_PREFIX = "ref: refs/heads/";
-    // indexļڳ־ûݴ
+    // index文件，用于持久化暂存区内容
     public static final File INDEX = join(GITLET_DIR, "index");
-    // lazyǵģʽװSupplierⲿֶȡļݣȥǰ׺eg: ref: refs/heads/master => master
+    // config文件，仓库配置（压缩等级等）
+    public static final File CONFIG = join(GITLET_DIR, "config");
+    // lazy是单例模式封装后的Supplier，这部分读取文件内容，去除前缀。eg: ref: refs/heads/master => master
     private final Lazy<String> currentBranch = lazy(() -> {
         String HEADFileContent = readContentsAsString(HEAD);
         return HEADFileContent.replace(HEAD_BRANCH_REF_PREFIX, "");
     });
 
-    // õڵļ
-    private static final Lazy<File[]> currentFiles = lazy(() -> CWD.listFiles(File::isFile));
+    // 拿到工作区内的所有文件（包括子目录里的，不包括 .gitlet）
+    private static final Lazy<List<File>> currentFiles = lazy(() -> {
+        List<File> files = new ArrayList<>();
+        listFiles(CWD, files);
+        return files;
+    });
 
 
 
-    // Headļ洢ǵǰ֧HEADComitԸݵǰ֧ǰ֧Commit
+    // Head文件存储的是当前分支名，而HEADComit可以根据当前分支名计算出当前分支的Commit
     private final Lazy<Commit> HEADCommit = lazy(() -> getBranchHeadCommit(currentBranch.get()));
     /**
-     *  lazy ̳Supplier<T>ӿڣӳٷǰ˽һķװ
-     *  lazy һ Supplier<T>ӿڶǸʽӿӳټأlambdaΪʵ
-     *  lambdaĺװΪdelegate,Թ
-     *  ⲿʵֵǰ
+     *  lazy 继承了Supplier<T>接口，在延迟返回前进行了进一步的封装
+     *  所以lazy 接受一个 Supplier<T>接口对象（这是个函数式接口用于延迟加载），传入的lambda是为这个对象的实现
+     *  所以lambda的函数封装为delegate,以供后续调用
+     *  这部分实现的是把
      */
     private final Lazy<StagingArea> stagingArea = lazy(() -> {
         StagingArea s = INDEX.exists()
                 ? StagingArea.fromFile()
                 : new StagingArea();
-        s.setTracked(HEADCommit.get().getTracked());
+        s.setHead(HEADCommit.get());
         return s;
     });
 
-    // ʼ .gitlet 
+    // 递归列出目录下的文件
+    private static void listFiles(File dir, List<File> files) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (child.isFile()) {
+                files.add(child);
+            } else if (child.isDirectory() && !child.equals(GITLET_DIR)) {
+                listFiles(child, files);
+            }
+        }
+    }
+
+    /**
+     * 文件相对于工作区的路径，用 '/' 分隔（tree 里记录的就是这个路径）
+     * 旧仓库记录的是当时那台机器上的绝对路径（可能是 Windows 路径），不在当前工作区下，
+     * 旧版本只跟踪工作区根目录下的文件，所以退回到文件名
+     * @param filePath 文件路径
+     * @return 相对路径
+     */
+    public static String getRelativePath(String filePath) {
+        Path path = Paths.get(filePath);
+        if (!path.isAbsolute() || !path.startsWith(CWD.toPath())) {
+            return filePath.substring(Math.max(filePath.lastIndexOf('/'), filePath.lastIndexOf('\\')) + 1);
+        }
+        return CWD.toPath().relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    // 初始化 .gitlet 区
     public static void init() {
-        // ʼĿ¼
+        // 初始化目录
         if (GITLET_DIR.exists()) {
             exit("A Gitlet version-control system already exists in the current directory.");
         }
@@ -79,38 +142,39 @@ public class Repository {
         mkdir(REFS_DIR);
         mkdir(BRANCH_HEADS_DIR);
         mkdir(OBJECTS_DIR);
-        // õǰ֧Ϊmaster
+        // 写入默认配置
+        Config.set(Config.CORE_COMPRESSION, String.valueOf(Deflater.DEFAULT_COMPRESSION));
+        Config.set(Config.CORE_CONTENT_ADDRESSED_BLOBS, "true");
+        // 设置当前分支为master
         setCurrentBranch(DEFAULT_BRANCH_NAME);
-        // õǰ֧ĵǰcommitΪinit
+        // 设置当前分支的当前commit为init
         createInitialCommit();
     }
 
-    // õǰ֧дHEADļɣΪţһǰ׺
+    // 设置当前分支：写入HEAD文件即可（为了优雅，加一下前缀）
     private static void setCurrentBranch(String branchName) {
-        // HEADļ¼ǰ֧Է֧дHEADļʵл
-        writeContents(HEAD, HEAD_BRANCH_REF_PREFIX + branchName);
+        // HEAD文件记录当前分支，所以分支名写入HEAD文件即可实现切换（原子替换，不会写了一半）
+        WriteTransaction.replace(HEAD, (HEAD_BRANCH_REF_PREFIX + branchName).getBytes(StandardCharsets.UTF_8));
     }
 
-    // ʼύ
+    // 创建初始化提交
     private static void createInitialCommit() {
-        // ʼһcommit
+        // 初始话一个commit
         Commit initialCommit = new Commit();
-        // commit
+        // 保存commit到磁盘
         initialCommit.save();
-        // commitidͷ֧֣÷֧ͷ
+        loadCommitGraph(Collections.singletonList(initialCommit.getId()));
+        // 根据commit的id和分支名字，设置分支头
         setBranchHeadCommit(DEFAULT_BRANCH_NAME, initialCommit.getId());
     }
 
-    // branchName ǰcommit Ϊ commitId
+    // 设置branchName 当前的commit 为 commitId（写入松散的分支文件，覆盖 packed-refs 里的）
     private static void setBranchHeadCommit(String branchName, String commitId) {
-        // õǰ֧ͷļ
-        File branchHeadFile = getBranchHeadFile(branchName);
-        // commitдͷļõǰ֧commit
-        setBranchHeadCommit(branchHeadFile, commitId);
+        Refs.write(branchName, commitId);
     }
 
     /**
-     * ȡbranchNameӦbranch file
+     * 获取branchName对应的branch file
      * @param branchName Name of the branch
      * @return File instance
      */
@@ -118,26 +182,7 @@ public class Repository {
         return join(BRANCH_HEADS_DIR, branchName);
     }
 
-    /**
-     *  branchHeadbranchӦCommit ¼ݣתcommitIdȻõӦCommitļ
-     * @param branchHeadFile File instance
-     * @return Commit instance
-     */
-    private static Commit getBranchHeadCommit(File branchHeadFile) {
-        String HEADCommitId = readContentsAsString(branchHeadFile);
-        return Commit.fromFile(HEADCommitId);
-    }
-
-    /**
-     * commitIdдӦbranchHeadFileļ
-     * @param branchHeadFile File instance
-     * @param commitId       Commit SHA1 id
-     */
-    private static void setBranchHeadCommit(File branchHeadFile, String commitId) {
-        writeContents(branchHeadFile, commitId);
-    }
-
-    // gitletڻ߲ļо˳
+    // 如果gitlet不存在或者不是文件夹就退出
     public static void checkWorkingDir() {
         if (!GITLET_DIR.exists() || !GITLET_DIR.isDirectory()) {
             exit("Not in an initialized Gitlet directory.");
@@ -145,80 +190,96 @@ public class Repository {
     }
 
     /**
-     * ļݴ
-     * @param fileName ļ
+     * 添加文件到暂存区
+     * @param fileName 文件名
      */
     public void add(String fileName) {
-        // filenameӦfileжfileǷ
+        // 返回filename对应的file对象，用于判断file是否存在
         File file = getFileFromCWD(fileName);
         if (!file.exists()) {
             exit("File does not exist.");
         }
-        // ļӵݴ
+        // 将文件添加到暂存区
         if (stagingArea.get().add(file)) {
-            // ݴ־û浽indexļ
+            // 暂存区持久化（保存到index文件）
             stagingArea.get().save();
         }
     }
 
     /**
-     *  filename õһ file ·ͽһ¹Ŀ¼·ֱӴ
+     * 根据 filename 拿到一个 file 对象（如果是相对路径就结合一下工作目录，绝对路径就直接创建）
      * @param fileName Name of the file
      * @return File instance
      */
     private static File getFileFromCWD(String fileName) {
-        return Paths.get(fileName).isAbsolute()
+        // 去掉 "./"、"a/../" 这样的部分，同一个文件的路径才是唯一的
+        File file = Paths.get(fileName).isAbsolute()
                 ? new File(fileName)
                 : join(CWD, fileName);
+        return file.toPath().normalize().toFile();
     }
 
     /**
-     * õ branchName Ӧµ Commit
+     * 拿到 branchName 对应的最新的 Commit
      * @param branchName Name of the branch
      * @return Commit instance
      */
     private static Commit getBranchHeadCommit(String branchName) {
-        File branchHeadFile = getBranchHeadFile(branchName);
-        return getBranchHeadCommit(branchHeadFile);
+        return Commit.fromFile(Refs.read(branchName));
     }
 
-    // commit
+    // 创建commit
     public void commit(String msg) {
         commit(msg, null);
     }
 
     /**
-     * ϢsecondParentcommitĬϵǰcommitΪparent
-     * mergeparentҪǿյsecondParent
+     * 根据消息和secondParent创建commit，默认当前commit为parent，
+     * 如果是merge，有两个parent就需要传入非空的secondParent
      * @param msg          Commit message
      * @param secondParent Second parent Commit SHA1 id
      */
     private void commit(String msg, String secondParent) {
-        // ڼûиľ˳
+        // 期间没有更改就退出
         if (stagingArea.get().isClean()) {
             exit("No changes added to the commit.");
         }
-        // ύݴ仯µõǰ״̬Ŀ
-        Map<String, String> newTrackedFilesMap = stagingArea.get().commit();
-        // ־ûݴ
-        stagingArea.get().save();
-        // ǰ֧commitΪparent
+        // 当前分支的commit作为parent
         List<String> parents = new ArrayList<>();
         parents.add(HEADCommit.get().getId());
         if (secondParent != null) {
             parents.add(secondParent);
         }
-        // Ϣparentsǰ commit
-        Commit newCommit = new Commit(msg, parents, newTrackedFilesMap);
-        // commit
-        newCommit.save();
-        // µǰ֧commit
-        setBranchHeadCommit(currentBranch.get(), newCommit.getId());
+        // 新的 tree 和 commit 在写事务里写：所有对象一起落盘之后，才原子地更新分支和 index
+        Commit newCommit;
+        try (WriteTransaction transaction = WriteTransaction.begin()) {
+            // add 时写的 blob（和切块存储的块）也要在分支指向新 commit 之前落盘
+            for (String blobId : stagingArea.get().getAdded().values()) {
+                transaction.sync(getObjectFile(blobId));
+                for (String chunkId : Blob.fromFile(blobId).getChunkIds()) {
+                    transaction.sync(getObjectFile(chunkId));
+                }
+            }
+            // 在 HEAD 的快照上应用暂存区的变化创建commit（只重写有变化的目录）
+            newCommit = stagingArea.get().commit(msg, parents);
+            // 保存commit
+            newCommit.save();
+            // 更新当前分支点最新commit，持久化暂存区内容
+            transaction.publish(getBranchHeadFile(currentBranch.get()), newCommit.getId().getBytes(StandardCharsets.UTF_8));
+            stagingArea.get().save(transaction);
+            transaction.commit();
+        }
+        // 追加到 commit-graph 和 message 的索引（索引还没建过就等 find 时再建）
+        loadCommitGraph(Collections.singletonList(newCommit.getId()));
+        if (MessageIndex.INDEX_FILE.exists()) {
+            MessageIndex.get().add(newCommit.getId(), msg);
+            MessageIndex.get().flush();
+        }
     }
 
 
     /**
-     * ɾļ
+     * 删除文件
      * @param fileName Name of the file
      */
     public void remove(String fileName) {
@@ -231,9 +292,9 @@ public class Repository {
     }
 
     /**
-     * Աgitе"git log --first-parent"
-     * ӵǰ֧ĵǰcommitʼǰfirst-parent(Ժparent),ӡcommitϢ
-     * eg
+     * 对标git中的命令："git log --first-parent"
+     * 从当前分支的当前commit开始，往前遍历first-parent(忽略后面的parent),打印commit信息
+     * eg：
      *    commit a0da1ea5a15ab613bf9961fd86f010cf74c7ee48
      *    Date: Thu Nov 9 20:00:05 2017 -0800
      *    A commit message.
@@ -242,120 +303,321 @@ public class Repository {
      *    Date: Thu Nov 9 17:01:33 2017 -0800
      *    Another commit message.
      */
-    public void log() {
-        StringBuilder logBuilder = new StringBuilder();
-        // ӵǰcommitʼǰӡ
-        Commit currentCommit = HEADCommit.get();
-        while (true) {
-            // commit־Ϣ
-            logBuilder.append(currentCommit.getLog()).append("\n");
-            // ˳parentֻfirst parent
-            List<String> parentCommitIds = currentCommit.getParents();
-            if (parentCommitIds.size() == 0) {
-                break;
+    public void log(LogOptions options) {
+        // 从当前commit开始往前打印（顺着 commit-graph 走，只有要打印的 commit 才读出来）
+        String HEADCommitId = Refs.read(currentBranch.get());
+        CommitGraph graph = loadCommitGraph(Collections.singletonList(HEADCommitId));
+        // 顺着parent遍历（只看first parent），选项满足了就提前停止
+        printLog(graph, walkFirstParents(graph, graph.lookup(HEADCommitId)), options);
+    }
+
+
+     // 按照date顺序打印所有commit的信息
+    public static void globalLog(LogOptions options) {
+        CommitGraph graph = loadCommitGraph(getBranchHeadCommitIds());
+        // 时间排序
+        Comparator<Integer> commitComparator = Comparator.comparingLong(graph::getTime).reversed();
+        printLog(graph, walkCommits(graph, new PriorityQueue<>(commitComparator)), options);
+    }
+
+    /**
+     * 一边遍历一边打印 commit 的日志（写进缓冲的输出流，不攒在内存里）
+     * 过滤只看 commit-graph 里的时间，要打印的 commit 在后台提前读出来，打印顺序不变
+     * @param graph     commit-graph
+     * @param positions 按打印顺序遍历的 commit 位置
+     * @param options   选项
+     */
+    private static void printLog(CommitGraph graph, Iterator<Integer> positions, LogOptions options) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+        forEachCommit(graph, new LogFilter(graph, positions, options), commit -> {
+            try {
+                out.write(commit.getLog());
+                out.write("\n");
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
             }
-            String firstParentCommitId = parentCommitIds.get(0);
-            // parentid سcommit 
-            currentCommit = Commit.fromFile(firstParentCommitId);
+        });
+        try {
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
         }
-        System.out.print(logBuilder);
     }
 
+    /**
+     * 按 log 的选项过滤 commit 的位置，满足了就结束
+     */
+    private static class LogFilter implements Iterator<Integer> {
+        private final CommitGraph graph;
+        private final Iterator<Integer> positions;
+        private final LogOptions options;
+        private int skipped;
+        private int printed;
+        // 下一个要打印的位置，-1 表示还没找
+        private int next = -1;
+        private boolean done;
+
+        LogFilter(CommitGraph graph, Iterator<Integer> positions, LogOptions options) {
+            this.graph = graph;
+            this.positions = positions;
+            this.options = options;
+        }
 
-     // date˳ӡcommitϢ
-    public static void globalLog() {
-        StringBuilder logBuilder = new StringBuilder();
-        // һfunctioncommitΪcommitlog뵽logBuilder
-        forEachCommitInOrder(commit -> logBuilder.append(commit.getLog()).append("\n"));
-        System.out.print(logBuilder);
+        @Override
+        public boolean hasNext() {
+            if (next < 0 && !done) {
+                next = findNext();
+                done = next < 0;
+            }
+            return !done;
+        }
+
+        @Override
+        public Integer next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int pos = next;
+            next = -1;
+            printed++;
+            return pos;
+        }
+
+        // 找下一个要打印的位置，没有了返回 -1
+        private int findNext() {
+            int maxCount = options.getMaxCount();
+            if (maxCount >= 0 && printed >= maxCount) {
+                return -1;
+            }
+            while (positions.hasNext()) {
+                int pos = positions.next();
+                long time = graph.getTime(pos);
+                // 按时间从新到旧遍历，比 --since 早就不用再往下走了
+                if (options.isTooOld(time)) {
+                    return -1;
+                }
+                if (options.isTooNew(time)) {
+                    continue;
+                }
+                if (skipped < options.getSkip()) {
+                    skipped++;
+                    continue;
+                }
+                return pos;
+            }
+            return -1;
+        }
     }
 
     /**
-     * ڴڱcommit
-     * @param cb CommitΪĺװΪConsumerӿڣ
+     * 无序遍历commit
+     * @param cb 接受Commit为参数的函数（封装为Consumer接口）
      */
-    private static void forEachCommitInOrder(Consumer<Commit> cb) {
-        // ʱ
-        Comparator<Commit> commitComparator = Comparator.comparing(Commit::getDate).reversed();
-        // ȶУݸöص
-        Queue<Commit> commitsPriorityQueue = new PriorityQueue<>(commitComparator);
-        forEachCommit(cb, commitsPriorityQueue);
+    private static void forEachCommit(Consumer<Commit> cb) {
+        CommitGraph graph = loadCommitGraph(getBranchHeadCommitIds());
+        // 普通队列
+        forEachCommit(graph, walkCommits(graph, new ArrayDeque<>()), cb);
     }
 
     /**
-     * commit
-     * @param cb CommitΪĺװΪConsumerӿڣ
+     * 按顺序读出并处理 commit：遍历顺序只由 commit-graph 决定，所以后面的 commit 可以在后台提前读
+     * （提前读的个数见 Config.CORE_PREFETCH_COMMITS），处理还是在当前线程里按顺序进行
+     * @param graph     commit-graph
+     * @param positions commit 在 commit-graph 里的位置（按处理顺序）
+     * @param cb        处理 commit 的函数
      */
-    private static void forEachCommit(Consumer<Commit> cb) {
-        // ͨ
-        Queue<Commit> commitsQueue = new ArrayDeque<>();
-        forEachCommit(cb, commitsQueue);
+    private static void forEachCommit(CommitGraph graph, Iterator<Integer> positions, Consumer<Commit> cb) {
+        int depth = Config.getInt(Config.CORE_PREFETCH_COMMITS, 16);
+        Prefetcher.forEach(positions, pos -> Commit.fromFile(graph.getId(pos)), depth, cb);
     }
 
     /**
-     * commit|
-     * @param cb                 commitcallback
-     * @param queueToHoldCommits commitĶУȶ|ͨ ɣ
+     * 遍历commit（有序|无序），顺着 commit-graph 走，不读出 commit
+     * @param graph              包含各分支头的 commit-graph
+     * @param queueToHoldCommits commit 在 commit-graph 里的位置的队列（优先队列|普通队列 均可）
+     * @return 按出队顺序的 commit 位置
      */
-    @SuppressWarnings("ConstantConditions")
-    private static void forEachCommit(Consumer<Commit> cb, Queue<Commit> queueToHoldCommits) {
-        // setȥ
-        Set<String> checkedCommitIds = new HashSet<>();
-        // ֧ļ¼÷֧ǰcommitId
-        File[] branchHeadFiles = BRANCH_HEADS_DIR.listFiles();
-        // ֧name
-        Arrays.sort(branchHeadFiles, Comparator.comparing(File::getName));
-        // ȰѸ֧ͷcommitУڼsetȥأ
-        for (File branchHeadFile : branchHeadFiles) {
-            String branchHeadCommitId = readContentsAsString(branchHeadFile);
-            if (checkedCommitIds.contains(branchHeadCommitId)) {
-                continue;
+    private static Iterator<Integer> walkCommits(CommitGraph graph, Queue<Integer> queueToHoldCommits) {
+        // set用于去重
+        Set<Integer> checkedCommits = new HashSet<>();
+        // 先把各个分支的头commit加入队列（期间用set去重）
+        for (String branchHeadCommitId : getBranchHeadCommitIds()) {
+            int pos = graph.lookup(branchHeadCommitId);
+            if (checkedCommits.add(pos)) {
+                queueToHoldCommits.add(pos);
             }
-            checkedCommitIds.add(branchHeadCommitId);
-            Commit branchHeadCommit = Commit.fromFile(branchHeadCommitId);
-            queueToHoldCommits.add(branchHeadCommit);
-        }
-        // ֧parentϱ
-        while (true) {
-            Commit nextCommit = queueToHoldCommits.poll();
-            // acceptΪ Consumer ӿڵĺcommitlog
-            cb.accept(nextCommit);
-            List<String> parentCommitIds = nextCommit.getParents();
-            if (parentCommitIds.size() == 0) {
-                break;
+        }
+        // 各个分支往parent上遍历，直到队列为空（初始commit不一定是最后一个出队的）
+        return new Iterator<Integer>() {
+            @Override
+            public boolean hasNext() {
+                return !queueToHoldCommits.isEmpty();
             }
-            //Ѹcommitӽ֮ǰȥأ
-            for (String parentCommitId : parentCommitIds) {
-                if (checkedCommitIds.contains(parentCommitId)) {
-                    continue;
+
+            @Override
+            public Integer next() {
+                int pos = queueToHoldCommits.remove();
+                //把父commit都加进来（加之前去重）
+                for (int i = 0; i < graph.getParentCount(pos); i++) {
+                    int parent = graph.getParent(pos, i);
+                    if (checkedCommits.add(parent)) {
+                        queueToHoldCommits.add(parent);
+                    }
+                }
+                return pos;
+            }
+        };
+    }
+
+    /**
+     * 从 pos 开始顺着 first parent 往前走
+     * @param graph commit-graph
+     * @param pos   起点在 commit-graph 里的位置
+     * @return 沿途的 commit 位置
+     */
+    private static Iterator<Integer> walkFirstParents(CommitGraph graph, int pos) {
+        return new Iterator<Integer>() {
+            private int current = pos;
+
+            @Override
+            public boolean hasNext() {
+                return current >= 0;
+            }
+
+            @Override
+            public Integer next() {
+                if (current < 0) {
+                    throw new NoSuchElementException();
+                }
+                int result = current;
+                current = graph.getParentCount(current) > 0 ? graph.getParent(current, 0) : -1;
+                return result;
+            }
+        };
+    }
+
+    // 各个分支头的 commit id（按分支名排序）
+    private static List<String> getBranchHeadCommitIds() {
+        // packed-refs 整个读一遍，再加上松散的分支文件
+        return new ArrayList<>(Refs.readAll().values());
+    }
+
+    /**
+     * 保证这些 commit 和它们的所有祖先都在 commit-graph 里：
+     * 新的 commit 追加进去；旧仓库第一次用到时从 commit 对象建出来
+     * @param commitIds commit id
+     * @return 包含这些 commit 的 commit-graph
+     */
+    private static CommitGraph loadCommitGraph(Collection<String> commitIds) {
+        CommitGraph graph = CommitGraph.get();
+        // 读出来还没加进去的 commit（等它的 parent 先加进去）
+        Map<String, Commit> commits = new HashMap<>();
+        Deque<String> stack = new ArrayDeque<>(commitIds);
+        while (!stack.isEmpty()) {
+            String commitId = stack.peek();
+            if (graph.lookup(commitId) >= 0) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = commits.computeIfAbsent(commitId, Commit::fromFile);
+            boolean parentsDone = true;
+            for (String parentId : commit.getParents()) {
+                if (graph.lookup(parentId) < 0) {
+                    stack.push(parentId);
+                    parentsDone = false;
                 }
-                checkedCommitIds.add(parentCommitId);
-                Commit parentCommit = Commit.fromFile(parentCommitId);
-                queueToHoldCommits.add(parentCommit);
             }
+            if (!parentsDone) {
+                continue;
+            }
+            stack.pop();
+            graph.add(commitId, commit.getParents(), commit.getDate().getTime());
+            commits.remove(commitId);
         }
+        graph.flush();
+        return CommitGraph.get();
     }
 
     /**
-     * ӡmessageͬCommitID
-     * @param msg commitmessage
+     * 打印所有与输入message相同的Commit的ID（查 message 的索引，只读出候选的 commit 核对），新的在前
+     * @param msg commit的message
      */
     public static void find(String msg) {
-        StringBuilder resultBuilder = new StringBuilder();
-        // ѯҪͨб
-        forEachCommit(commit -> {
-            if (commit.getMessage().equals(msg)) {
-                resultBuilder.append(commit.getId()).append("\n");
+        printCommitIds(loadMessageIndex().lookupMessage(msg), commit -> commit.getMessage().equals(msg));
+    }
+
+    /**
+     * 打印message里有这个词（不区分大小写）的Commit的ID，新的在前
+     * @param word 词
+     */
+    public static void findWord(String word) {
+        Set<String> words = MessageIndex.tokenize(word);
+        if (words.size() != 1) {
+            exit("Please enter a single word.");
+        }
+        String token = words.iterator().next();
+        printCommitIds(loadMessageIndex().lookupWord(token),
+            commit -> MessageIndex.tokenize(commit.getMessage()).contains(token));
+    }
+
+    // 核对候选的 commit，按日期从新到旧打印（和遍历各分支一样，只看从分支能走到的 commit）
+    private static void printCommitIds(List<String> candidateIds, Predicate<Commit> matches) {
+        List<Commit> commits = new ArrayList<>();
+        Set<Integer> reachable = new HashSet<>();
+        if (!candidateIds.isEmpty()) {
+            CommitGraph graph = loadCommitGraph(getBranchHeadCommitIds());
+            walkCommits(graph, new ArrayDeque<>()).forEachRemaining(reachable::add);
+            candidateIds.removeIf(commitId -> !reachable.contains(graph.lookup(commitId)));
+        }
+        for (String commitId : new LinkedHashSet<>(candidateIds)) {
+            Commit commit = Commit.fromFile(commitId);
+            if (matches.test(commit)) {
+                commits.add(commit);
             }
-        });
-        if (resultBuilder.length() == 0) {
+        }
+        if (commits.isEmpty()) {
             exit("Found no commit with that message.");
         }
+        commits.sort(Comparator.comparing(Commit::getDate).reversed());
+        StringBuilder resultBuilder = new StringBuilder();
+        for (Commit commit : commits) {
+            resultBuilder.append(commit.getId()).append("\n");
+        }
         System.out.print(resultBuilder);
     }
 
+    // 删除 message 的索引，重新建一遍
+    public static void rebuildMessageIndex() {
+        MessageIndex.delete();
+        loadMessageIndex();
+    }
+
+    /**
+     * message 的索引，保证 commit-graph 里的 commit 都已经索引过：
+     * 索引过的 commit 数和 commit-graph 里的一样就直接用，否则补上缺的（第一次用到时就是全部建一遍）
+     * commit-graph 不会删减，里面可能有对象已经不在了的 commit，跳过不索引
+     * @return MessageIndex
+     */
+    private static MessageIndex loadMessageIndex() {
+        CommitGraph graph = loadCommitGraph(getBranchHeadCommitIds());
+        MessageIndex messageIndex = MessageIndex.get();
+        if (messageIndex.getCommitCount() == graph.size()) {
+            return messageIndex;
+        }
+        Set<String> indexedCommitIds = messageIndex.getCommitIds();
+        for (int pos = 0; pos < graph.size(); pos++) {
+            String commitId = graph.getId(pos);
+            if (indexedCommitIds.add(commitId) && objectExists(commitId)) {
+                messageIndex.add(commitId, Commit.fromFile(commitId).getMessage());
+            }
+        }
+        messageIndex.setCommitCount(graph.size());
+        messageIndex.flush();
+        return MessageIndex.get();
+    }
+
     /**
-     * ӡз֧ǰ֧ * أӡݣ
+     * 打印所有分支，当前分支 “*” 加重，打印其他内容：
      * === Branches ===
      * *master
      * other-branch
@@ -377,63 +639,63 @@ public class Repository {
     @SuppressWarnings("ConstantConditions")
     public void status() {
         StringBuilder statusBuilder = new StringBuilder();
-        // ӡ֧Ϣ
+        // 打印分支信息
         statusBuilder.append("=== Branches ===").append("\n");
-        // ǰ֧ * 
+        // 当前分支 * 加重
         statusBuilder.append("*").append(currentBranch.get()).append("\n");
-        // ӷǵǰ֧name
-        String[] branchNames = BRANCH_HEADS_DIR.list((dir, name) -> !name.equals(currentBranch.get()));
-        Arrays.sort(branchNames);
-        for (String branchName : branchNames) {
-            statusBuilder.append(branchName).append("\n");
+        // 添加非当前分支（name排序）
+        for (String branchName : Refs.readAll().keySet()) {
+            if (!branchName.equals(currentBranch.get())) {
+                statusBuilder.append(branchName).append("\n");
+            }
         }
         statusBuilder.append("\n");
 
-        // õݴ added  removed 
+        // 拿到暂存区 added 和 removed 的内容
         Map<String, String> addedFilesMap = stagingArea.get().getAdded();
         Set<String> removedFilePathsSet = stagingArea.get().getRemoved();
 
-        // ļ˳added
+        // 按照文件名顺序，添加added区域的内容
         statusBuilder.append("=== Staged Files ===").append("\n");
         appendFileNamesInOrder(statusBuilder, addedFilesMap.keySet());
         statusBuilder.append("\n");
 
-        // ļ˳removed
+        // 按照文件名顺序，添加removed区域的内容
         statusBuilder.append("=== Removed Files ===").append("\n");
         appendFileNamesInOrder(statusBuilder, removedFilePathsSet);
         statusBuilder.append("\n");
 
         statusBuilder.append("=== Modifications Not Staged For Commit ===").append("\n");
-        // õcommitȻ˵ûб浽ݴļ
+        // 拿到commit过，然后更改了但还没有保存到暂存区的文件
         List<String> modifiedNotStageFilePaths = new ArrayList<>();
-        // õcommitûrmɾļļԼӹɾļ
+        // 拿到commit过，没有rm删除文件，但文件以及被从工作区删除的文件
         Set<String> deletedNotStageFilePaths = new HashSet<>();
 
-        // ȡǰļ <path,id>
+        // 获取当前工作区文件 <path,id>
         Map<String, String> currentFilesMap = getCurrentFilesMap();
-        // addedremoveݸtrackedõݴڵĸٵļ״̬
-        Map<String, String> trackedFilesMap = HEADCommit.get().getTracked();
+        // 结合added和remove的内容更新tracked，得到暂存区现在的跟踪的文件的状态
+        Map<String, String> trackedFilesMap = new HashMap<>(HEADCommit.get().getTracked());
         trackedFilesMap.putAll(addedFilesMap);
         for (String filePath : removedFilePathsSet) {
             trackedFilesMap.remove(filePath);
         }
-        // ٵļ
+        // 遍历跟踪的文件
         for (Map.Entry<String, String> entry : trackedFilesMap.entrySet()) {
             String filePath = entry.getKey();
             String blobId = entry.getValue();
 
-            // Իȡǰļid
+            // 尝试获取当前文件id
             String currentFileBlobId = currentFilesMap.get(filePath);
-            // Լûļ Ϊnull
+            // 工作区以及没有这个文件 就为null
             if (currentFileBlobId != null) {
-                // ˵Ĺˣ ݴ|commit 
+                // 不相等说明改过了（工作区与 暂存区|commit 不服）
                 if (!currentFileBlobId.equals(blobId)) {
                     modifiedNotStageFilePaths.add(filePath);
                 }
-                // Ͱݴ˾ɾѭʣµľҪõģûӵݴĹļ
+                // 工作区和把暂存区对上了就删除，这样循环后剩下的就是最后要用的：没有添加到暂存区的工作区文件了
                 currentFilesMap.remove(filePath);
             } else {
-                // ݴ|tracked УԼɾˣ¼
+                // 暂存区|tracked 还有，工作区以及删除了，记录进来
                 modifiedNotStageFilePaths.add(filePath);
                 deletedNotStageFilePaths.add(filePath);
             }
@@ -441,11 +703,10 @@ public class Repository {
 
         modifiedNotStageFilePaths.sort(String::compareTo);
 
-        // ŵдdeletedеĴdeletedǩmodifieddeletedûеĴmodified
-        // ˸оmodifiedֻmodifiedҲȫûëȻţѭҪΣ׶
+        // 优雅的写法，就是deleted有的打deleted标签，modified有deleted没有的打modified，
+        // 但个人感觉modified只存modified也完全没毛病，虽然不够优雅（排序，循环都要两次），但清晰易懂
         for (String filePath : modifiedNotStageFilePaths) {
-            String fileName = Paths.get(filePath).getFileName().toString();
-            statusBuilder.append(fileName);
+            statusBuilder.append(getRelativePath(filePath));
             if (deletedNotStageFilePaths.contains(filePath)) {
                 statusBuilder.append(" ").append("(deleted)");
             } else {
@@ -455,135 +716,282 @@ public class Repository {
         }
         statusBuilder.append("\n");
 
-        // ûӵݴĹļ
+        // 没有添加到暂存区的工作区文件了
         statusBuilder.append("=== Untracked Files ===").append("\n");
-        // ǰѾ˳㴦currentFilesMapˣֱдͺ
+        // 前面已经顺便处理currentFilesMap了，直接排序写入就好了
         appendFileNamesInOrder(statusBuilder, currentFilesMap.keySet());
         statusBuilder.append("\n");
 
         System.out.print(statusBuilder);
     }
 
-    // ˳fileNameӵstringBuilder
+    // 按照顺序把fileName添加到stringBuilder里面
     private static void appendFileNamesInOrder(StringBuilder stringBuilder, Collection<String> filePathsCollection) {
         List<String> filePathsList = new ArrayList<>(filePathsCollection);
         appendFileNamesInOrder(stringBuilder, filePathsList);
     }
 
-    // ˳fileNameӵstringBuilder
+    // 按照顺序把fileName（子目录里的文件是相对于工作区的路径）添加到stringBuilder里面
     private static void appendFileNamesInOrder(StringBuilder stringBuilder, List<String> filePathsList) {
         filePathsList.sort(String::compareTo);
         for (String filePath : filePathsList) {
-            String fileName = Paths.get(filePath).getFileName().toString();
-            stringBuilder.append(fileName).append("\n");
+            stringBuilder.append(getRelativePath(filePath)).append("\n");
         }
     }
 
-    // ǰļбӳ䣬keyfilepathvalueblobId
-    private static Map<String, String> getCurrentFilesMap() {
-        Map<String, String> filesMap = new HashMap<>();
-        for (File file : currentFiles.get()) {
-            String filePath = file.getPath();
-            String blobId = Blob.generateId(file);
-            filesMap.put(filePath, blobId);
+    // 遍历当前的文件列表并建立映射，key是filepath，value是blobId（没改过的文件用 index 里缓存的 id）
+    // 各个文件的 id 互不相关，在线程池里并行计算（结果是映射，和计算顺序无关）
+    // 文件系统监视器在运行时，只检查上次以来有变化的文件，其他文件直接用缓存（见 FsMonitor）
+    private Map<String, String> getCurrentFilesMap() {
+        Map<String, String> filesMap = new ConcurrentHashMap<>();
+        StagingArea s = stagingArea.get();
+        FsMonitor.Changes changes = FsMonitor.getChanges(s.getFsmonitorToken());
+        Set<String> changedPaths = changes.getPaths();
+        // 这次计算过 id 的文件
+        Collection<String> scannedPaths;
+        if (changedPaths == null) {
+            parallelForEach(currentFiles.get(),
+                    file -> filesMap.put(file.getPath(), s.getBlobId(file)));
+            s.retainStatCache(filesMap.keySet());
+            scannedPaths = filesMap.keySet();
+        } else {
+            filesMap.putAll(s.getCachedBlobIds());
+            List<File> changedFiles = new ArrayList<>();
+            for (String filePath : changedPaths) {
+                // 变化的可能是目录（新建、改名、删除），它下面的文件都要重新看
+                String dirPrefix = filePath + File.separator;
+                filesMap.keySet().removeIf(path -> path.equals(filePath) || path.startsWith(dirPrefix));
+                File file = new File(filePath);
+                if (file.isFile()) {
+                    changedFiles.add(file);
+                } else if (file.isDirectory()) {
+                    listFiles(file, changedFiles);
+                } else {
+                    s.removeStatCache(filePath);
+                }
+            }
+            parallelForEach(changedFiles, file -> filesMap.put(file.getPath(), s.getBlobId(file)));
+            scannedPaths = new ArrayList<>();
+            for (File file : changedFiles) {
+                scannedPaths.add(file.getPath());
+            }
+        }
+        // 计算 id 时正在被改的文件没有缓存，而监视器只看缓存里的文件：这时不更新 token，
+        // 下次监视器还会报告这个文件（或者整个重新扫描），不会从 status 里消失
+        boolean allCached = true;
+        for (String filePath : scannedPaths) {
+            if (!s.isStatCached(filePath)) {
+                allCached = false;
+                break;
+            }
+        }
+        if (allCached) {
+            s.setFsmonitorToken(changes.getToken());
         }
+        // 缓存有变化就保存，下次就不用再算了
+        stagingArea.get().saveIfStatCacheDirty();
         return filesMap;
     }
 
 
     /**
-     * ָcommitidǰ׺ָblobļ
-     * @param commitId ָcommitid
-     * @param fileName Ҫָļ
+     * 对标git中的命令："git diff"，以 unified 格式打印逐行的修改（只看跟踪的文件）
+     * diff                   工作区和暂存区（HEAD 加上暂存的变化）比较
+     * diff --cached          暂存区和 HEAD 比较
+     * diff [commit]          工作区和 commit 比较
+     * diff [commit] [commit] 两个 commit 比较
+     * commit 可以是分支名或者 commit id（前缀）
+     * @param revs   commit（0~2 个）
+     * @param cached 是否比较暂存区和 HEAD
+     */
+    public void diff(List<String> revs, boolean cached) {
+        // 暂存区的文件快照：HEAD 的快照加上暂存的变化
+        Map<String, String> stagedFilesMap = new HashMap<>(HEADCommit.get().getTracked());
+        stagedFilesMap.putAll(stagingArea.get().getAdded());
+        stagedFilesMap.keySet().removeAll(stagingArea.get().getRemoved());
+        Map<String, String> fromFilesMap;
+        Map<String, String> toFilesMap;
+        boolean toWorkingTree = false;
+        if (cached) {
+            fromFilesMap = HEADCommit.get().getTracked();
+            toFilesMap = stagedFilesMap;
+        } else if (revs.size() == 2) {
+            fromFilesMap = Commit.fromFile(resolveCommitId(revs.get(0))).getTracked();
+            toFilesMap = Commit.fromFile(resolveCommitId(revs.get(1))).getTracked();
+        } else {
+            fromFilesMap = revs.isEmpty() ? stagedFilesMap : Commit.fromFile(resolveCommitId(revs.get(0))).getTracked();
+            // 工作区里跟踪的文件（没改过的文件直接用缓存的 id，和另一边 id 一样就不用读出来比较）
+            Map<String, String> currentFilesMap = getCurrentFilesMap();
+            toFilesMap = new HashMap<>();
+            for (String filePath : fromFilesMap.keySet()) {
+                if (currentFilesMap.containsKey(filePath)) {
+                    toFilesMap.put(filePath, currentFilesMap.get(filePath));
+                }
+            }
+            for (String filePath : stagedFilesMap.keySet()) {
+                if (currentFilesMap.containsKey(filePath)) {
+                    toFilesMap.put(filePath, currentFilesMap.get(filePath));
+                }
+            }
+            toWorkingTree = true;
+        }
+        Set<String> filePaths = new TreeSet<>(fromFilesMap.keySet());
+        filePaths.addAll(toFilesMap.keySet());
+        OutputStream out = new BufferedOutputStream(System.out);
+        try {
+            for (String filePath : filePaths) {
+                String fromBlobId = fromFilesMap.get(filePath);
+                String toBlobId = toFilesMap.get(filePath);
+                if (Objects.equals(fromBlobId, toBlobId)) {
+                    continue;
+                }
+                byte[] fromContent = fromBlobId == null ? new byte[0] : Blob.fromFile(fromBlobId).getContent();
+                byte[] toContent;
+                if (toBlobId == null) {
+                    toContent = new byte[0];
+                } else if (toWorkingTree) {
+                    toContent = readContents(new File(filePath));
+                } else {
+                    toContent = Blob.fromFile(toBlobId).getContent();
+                }
+                writeFileDiff(out, getRelativePath(filePath), fromBlobId == null ? null : fromContent,
+                        toBlobId == null ? null : toContent);
+            }
+            out.flush();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 打印一个文件的修改
+     * @param out          输出流
+     * @param relativePath 文件相对于工作区的路径
+     * @param fromContent  原来的内容，null 表示新增的文件
+     * @param toContent    新的内容，null 表示删除的文件
+     */
+    private static void writeFileDiff(OutputStream out, String relativePath, byte[] fromContent, byte[] toContent)
+            throws IOException {
+        Lines from = new Lines(fromContent == null ? new byte[0] : fromContent);
+        Lines to = new Lines(toContent == null ? new byte[0] : toContent);
+        String fromName = fromContent == null ? "/dev/null" : "a/" + relativePath;
+        String toName = toContent == null ? "/dev/null" : "b/" + relativePath;
+        StringBuilder headerBuilder = new StringBuilder();
+        headerBuilder.append("diff --git a/").append(relativePath).append(" b/").append(relativePath).append("\n");
+        if (from.isBinary() || to.isBinary()) {
+            if (Arrays.equals(from.getContent(), to.getContent())) {
+                return;
+            }
+            headerBuilder.append("Binary files ").append(fromName).append(" and ").append(toName).append(" differ\n");
+            out.write(headerBuilder.toString().getBytes(StandardCharsets.UTF_8));
+            return;
+        }
+        List<Diff.Edit> edits = Diff.diff(from, to);
+        // 内容一样（旧仓库里 blob id 和路径有关，id 不同内容也可能一样），新增、删除的空文件
+        if (edits.isEmpty() && fromContent != null && toContent != null) {
+            return;
+        }
+        headerBuilder.append("--- ").append(fromName).append("\n");
+        headerBuilder.append("+++ ").append(toName).append("\n");
+        out.write(headerBuilder.toString().getBytes(StandardCharsets.UTF_8));
+        Diff.writeUnified(out, from, to, edits, DIFF_CONTEXT);
+    }
+
+    /**
+     * 根据指定的commitid的前缀恢复blob文件
+     * @param commitId 指定的commitid
+     * @param fileName 要恢复的文件名
      */
     public void checkout(String commitId, String fileName) {
-        // ݴcommitidǰ׺õcommitIdûʹãÿζһ40λidˣ4λǰ׺ɣ
+        // 根据传入的commitid前缀拿到完整的commitId（便于用户使用，不用每次都传一个40位的id了，传入大于4位的前缀即可）
         commitId = getActualCommitId(commitId);
         String filePath = getFileFromCWD(fileName).getPath();
-        // ֱӻָһcommitIdõӦcommitĲ
+        // 比起直接恢复，多了一个根据commitId拿到对应commit的步骤
         if (!Commit.fromFile(commitId).restoreTracked(filePath)) {
             exit("File does not exist in that commit.");
         }
     }
 
     /**
-     * commit ָļ
+     * 根据commit 恢复文件
      * @param fileName Name of the file
      */
     public void checkout(String fileName) {
-        // ļƴճɾ·
+        // 文件名拼凑成绝对路径
         String filePath = getFileFromCWD(fileName).getPath();
-        // Ըtracked¼ָļݣھexit
+        // 尝试根据tracked记录恢复文件内容（不存在就exit）
         if (!HEADCommit.get().restoreTracked(filePath)) {
             exit("File does not exist in that commit.");
         }
     }
 
     /**
-     * ǩָķ֧
-     * @param targetBranchName Ŀ֧
+     * 签出到指定的分支
+     * @param targetBranchName 目标分支的名字
      */
     public void checkoutBranch(String targetBranchName) {
-        // õӦbranchheadsļ
-        File targetBranchHeadFile = getBranchHeadFile(targetBranchName);
-        if (!targetBranchHeadFile.exists()) {
+        // 拿到对应branch的commit id
+        String targetBranchHeadCommitId = Refs.read(targetBranchName);
+        if (targetBranchHeadCommitId == null) {
             exit("No such branch exists.");
         }
-        // Ŀ֧ǰ֧һ
+        // 目标分支跟当前分支一致
         if (targetBranchName.equals(currentBranch.get())) {
             exit("No need to checkout the current branch.");
         }
-        // õĿ֧ĵǰcommit
-        Commit targetBranchHeadCommit = getBranchHeadCommit(targetBranchHeadFile);
-        // жϵǰݴҪٵļǷδĸģо˳
+        // 拿到目标分支的当前commit
+        Commit targetBranchHeadCommit = Commit.fromFile(targetBranchHeadCommitId);
+        // 判断当前暂存区要跟踪的文件是否有未保存的更改，有就退出
         checkUntracked(targetBranchHeadCommit);
-        // ûо͸¹Ŀ¼Ϊcommit
+        // 没有就更新工作目录内容为commit的内容
         checkoutCommit(targetBranchHeadCommit);
-        // õǰ֧ѷ֧дHEAD
+        // 设置当前分支（把分支名写入HEAD）
         setCurrentBranch(targetBranchName);
     }
 
     /**
-     * ݴĲidȡidӶûô40λidˣ
-     * @param commitId ûid(ģҲǴ4λǰ׺)
-     * @return commitid
+     * 根据传入的部分id来获取完整的id，从而简化用户操作（不用传入完整的40位id了）
+     * @param commitId 用户传入的id(可以是完整的，也可以是大于4位的前缀)
+     * @return 返回完整commitid
      */
     @SuppressWarnings("ConstantConditions")
     private static String getActualCommitId(String commitId) {
-        // commitid
+        // 给的commitid不完整
         if (commitId.length() < UID_LENGTH) {
-            // ̫
+            // 太少了
             if (commitId.length() < 4) {
                 exit("Commit id should contain at least 4 characters.");
             }
-            // õidӦļУidǰ2λģ
+            // 前缀匹配上的commit（松散对象和pack里可能有同一个对象，用set去重）
+            Set<String> foundCommitIds = new HashSet<>();
+            // 拿到id对应对象所在文件夹（按照id前2位创建的）
             String objectDirName = getObjectDirName(commitId);
             File objectDir = join(OBJECTS_DIR, objectDirName);
-            // ڣ˵ǰNλ
-            if (!objectDir.exists()) {
-                exit("No commit with that id exists.");
-            }
-            boolean isFound = false;
-            // ǰλļУʣµΪļǰ׺
+            // 前两位是文件夹，剩下的为文件名的前缀
             String objectFileNamePrefix = getObjectFileName(commitId);
-            // ʼۼ
-            for (File objectFile : objectDir.listFiles()) {
-                String objectFileName = objectFile.getName();
-                // ǰ׺Եϣcommit
-                if (objectFileName.startsWith(objectFileNamePrefix) && isFileInstanceOf(objectFile, Commit.class)) {
-                    if (isFound) {
-                        exit("More than 1 commit has the same id prefix.");
+            // 文件夹存在的话，遍历文件夹
+            if (objectDir.exists()) {
+                for (File objectFile : objectDir.listFiles()) {
+                    String objectFileName = objectFile.getName();
+                    // 前缀对的上，而且是commit对象
+                    if (objectFileName.startsWith(objectFileNamePrefix)
+                            && isFileInstanceOf(objectFile, ObjectCodec.TYPE_COMMIT, Commit.class)) {
+                        foundCommitIds.add(objectDirName + objectFileName);
                     }
-                    commitId = objectDirName + objectFileName;
-                    isFound = true;
                 }
             }
-            if (!isFound) {
+            // 再查打包过的commit
+            foundCommitIds.addAll(PackFile.findPackedIdsByPrefix(commitId, ObjectCodec.TYPE_COMMIT));
+            if (foundCommitIds.size() > 1) {
+                exit("More than 1 commit has the same id prefix.");
+            }
+            if (foundCommitIds.isEmpty()) {
                 exit("No commit with that id exists.");
             }
+            commitId = foundCommitIds.iterator().next();
         } else {
-            // commit
-            if (!getObjectFile(commitId).exists()) {
+            // 给了完整的commit但出给错了
+            if (!objectExists(commitId)) {
                 exit("No commit with that id exists.");
             }
         }
@@ -591,36 +999,36 @@ public class Repository {
     }
 
     /**
-     * Ŀύδٵļ˳ʾϢ
+     * 如果目标提交将覆盖未跟踪的文件，则退出并显示消息
      * @param targetCommit Commit SHA1 id
      */
     private void checkUntracked(Commit targetCommit) {
-        // ǰļ
+        // 当前工作区文件
         Map<String, String> currentFilesMap = getCurrentFilesMap();
-        // ݴϢ
+        // 暂存区信息
         Map<String, String> trackedFilesMap = HEADCommit.get().getTracked();
         Map<String, String> addedFilesMap = stagingArea.get().getAdded();
         Set<String> removedFilePathsSet = stagingArea.get().getRemoved();
-        // ٵļûбĸ
+        // 跟踪的文件存在没有保存的更改
         List<String> untrackedFilePaths = new ArrayList<>();
         for (String filePath : currentFilesMap.keySet()) {
-            // ļ
+            // 该文件跟踪
             if (trackedFilesMap.containsKey(filePath)) {
-                // ڸ(addҲҪжϰɣ)
+                // 存在更改(add也需要判断吧？)
                 if (removedFilePathsSet.contains(filePath)||addedFilesMap.containsKey(filePath)) {
                     untrackedFilePaths.add(filePath);
                 }
             } else {
-                // ûٵaddˣҲû׼
+                // 可能没跟踪但add了，也就是用户准备跟踪
                 if (addedFilesMap.containsKey(filePath)) {
                     untrackedFilePaths.add(filePath);
                 }
             }
         }
 
-        // õĿcommitļ
+        // 拿到目标commit保存的文件
         Map<String, String> targetCommitTrackedFilesMap = targetCommit.getTracked();
-        // Ŀcommitļid͵ǰûļidͬ˵ǩ֧Ḳδύ
+        // 如果目标commit的文件的id和当前没保存的文件的id不同，说明签出分支会覆盖未保存的提交
         for (String filePath : untrackedFilePaths) {
             String blobId = currentFilesMap.get(filePath);
             String targetBlobId = targetCommitTrackedFilesMap.get(filePath);
@@ -631,266 +1039,737 @@ public class Repository {
     }
 
     /**
-     * һ·֧
-     * @param newBranchName µķ֧
+     * 创建一个新分支
+     * @param newBranchName 新的分支名
      */
     public void branch(String newBranchName) {
-        //  refs/heads ´Ӧ branchName ļ
-        File newBranchHeadFile = getBranchHeadFile(newBranchName);
-        if (newBranchHeadFile.exists()) {
+        // 松散文件和 packed-refs 里都没有才能创建
+        if (Refs.read(newBranchName) != null) {
             exit("A branch with that name already exists.");
         }
-        // õǰcommitΪbranchĳʼcommitдheadļ
-        setBranchHeadCommit(newBranchHeadFile, HEADCommit.get().getId());
+        // 拿到当前commit，作为新branch的初始commit（在 refs/heads 下创建对应的 branchName 文件）
+        setBranchHeadCommit(newBranchName, HEADCommit.get().getId());
     }
 
     /**
-     * ǩĿcommit
-     * @param targetCommit Ŀcommit
+     * 签出到目标commit
+     * @param targetCommit 目标commit
      */
     private void checkoutCommit(Commit targetCommit) {
-        // ݴǰжϹˣûδĸģ
+        // 工作区现在的文件（没改过的文件直接用 index 里缓存的 id，不用重新计算）
+        Map<String, String> currentFilesMap = getCurrentFilesMap();
+        Map<String, String> targetTrackedFilesMap = targetCommit.getTracked();
+        // 清空暂存区（前面判断过了，没有未保存的更改）
         stagingArea.get().clear();
-        // ¼ݴ
+        // 记录暂存区
         stagingArea.get().save();
-        // ɾļ
-        for (File file : currentFiles.get()) {
-            rm(file);
+        // 只动和目标commit不一样的文件：先删除目标commit里没有的文件，以及因此变空的子目录
+        Set<File> dirs = new HashSet<>();
+        for (String filePath : currentFilesMap.keySet()) {
+            if (!targetTrackedFilesMap.containsKey(filePath)) {
+                File file = new File(filePath);
+                rm(file);
+                dirs.add(file.getParentFile());
+            }
+        }
+        for (File dir : dirs) {
+            pruneEmptyDirs(dir);
+        }
+        // 再恢复内容不一样的文件（内容一样的文件不重写，修改时间也不变）
+        List<String> changedFilePaths = new ArrayList<>();
+        for (Map.Entry<String, String> entry : targetTrackedFilesMap.entrySet()) {
+            if (!entry.getValue().equals(currentFilesMap.get(entry.getKey()))) {
+                changedFilePaths.add(entry.getKey());
+            }
+        }
+        targetCommit.restoreTracked(changedFilePaths);
+    }
+
+    // 从 dir 往上删除空的目录，直到工作区根目录
+    private static void pruneEmptyDirs(File dir) {
+        while (!dir.equals(CWD)) {
+            String[] children = dir.list();
+            if (children == null || children.length != 0) {
+                return;
+            }
+            rm(dir);
+            dir = dir.getParentFile();
         }
-        // ָcommitеļ
-        targetCommit.restoreAllTracked();
     }
 
     /**
-     * ɾ֧
-     * @param targetBranchName ҪɾĿ֧
+     * 删除分支
+     * @param targetBranchName 要删除的目标分支名字
      */
     public void rmBranch(String targetBranchName) {
-        // õ֧HeadFile
-        File targetBranchHeadFile = getBranchHeadFile(targetBranchName);
-        if (!targetBranchHeadFile.exists()) {
+        if (Refs.read(targetBranchName) == null) {
             exit("A branch with that name does not exist.");
         }
         if (targetBranchName.equals(currentBranch.get())) {
             exit("Cannot remove the current branch.");
         }
-        // ɾ֧ļ
-        rm(targetBranchHeadFile);
+        // 删除分支文件（以及 packed-refs 里的这一行）
+        Refs.delete(targetBranchName);
     }
 
     /**
-     * µǰΪcommitIdӦİ汾
-     * @param commitId ĿcommitId
+     * 更新当前内容为commitId对应的版本内容
+     * @param commitId 目标commitId
      */
     public void reset(String commitId) {
-        // ȡcommitIdǰ׺ȫУ飩
+        // 获取完整commitId（前缀补全与校验）
         commitId = getActualCommitId(commitId);
-        // commitIdõtargetComit
+        // 根据commitId拿到targetComit
         Commit targetCommit = Commit.fromFile(commitId);
-        // УǷڸύ
+        // 校验是否存在覆盖提交
         checkUntracked(targetCommit);
-        // ǩĿcommitĹݣ
+        // 签出到目标commit（更改工作区内容）
         checkoutCommit(targetCommit);
-        // õǰcommitдHeads
+        // 设置当前commit（写入Heads）
         setBranchHeadCommit(currentBranch.get(), commitId);
     }
 
     /**
-     * ϲ֧8masterother,masterֳһother֧masterother֧еļ޸ģ
-     * 8
-     * 1masterļotherû䣨2masterûotherˣԱ仯°Ϊ׼
-     * 3masterother ûĶһǾͲþ
-     * 4ohtermasterˣĵĲһʾͻ
-     * 5masterļɾˣotherûģ˵masterµĲϲҲɾ
-     * 6otherɾmasterûģͬϣϲҲɾ
-     * 7otherɾˣmasterĶˣ϶ĶףĶļ
-     * 8masterɾˣotherˣͬ
-     * @param targetBranchName Ҫϲǰ֧Ļ
+     * 合并分支（8种情况），例如master和other,master分出一个other分支后，master和other两个分支中的文件都可能做了修改，
+     * 进而导致了8中情况
+     * （1）master中文件变了other没变（2）master没变other变了：以变化的最新版为准
+     * （3）master和other 都没变或改动一样，那就不用纠结了
+     * （4）ohter和master都改了，但改的不一样：提示冲突
+     * （5）master的这个文件删了，other没改：说明master是新的操作，合并后也删除了
+     * （6）other删除，master没改：同上，合并后也删除
+     * （7）other删了，master改动了：肯定保存改动更稳妥，保存改动后的文件
+     * （8）master删了，other改了：同上
+     * @param targetBranchName 要合并到当前分支的活
      */
     public void merge(String targetBranchName) {
-        // õҪϲķ֧
-        File targetBranchHeadFile = getBranchHeadFile(targetBranchName);
-        // ֧
-        if (!targetBranchHeadFile.exists()) {
+        // 拿到要合并的分支
+        String targetBranchHeadCommitId = Refs.read(targetBranchName);
+        // 分支不存在
+        if (targetBranchHeadCommitId == null) {
             exit("A branch with that name does not exist.");
         }
-        // ǰ֧һ֧
+        // 跟当前分支是一个分支
         if (targetBranchName.equals(currentBranch.get())) {
             exit("Cannot merge a branch with itself.");
         }
-        // ûύ
+        // 又没保存的提交
         if (!stagingArea.get().isClean()) {
             exit("You have uncommitted changes.");
         }
-        // õĿcommit
-        Commit targetBranchHeadCommit = getBranchHeadCommit(targetBranchHeadFile);
-        // УǷδύķ֧
+        // 拿到目标commit
+        Commit targetBranchHeadCommit = Commit.fromFile(targetBranchHeadCommitId);
+        // 校验是否有未提交的分支
         checkUntracked(targetBranchHeadCommit);
-        // õͬcommit
-        Commit lcaCommit = getLatestCommonAncestorCommit(HEADCommit.get(), targetBranchHeadCommit);
-        String lcaCommitId = lcaCommit.getId();
-        // targetcurrentȵĻҵlcatargetֲҪϲcurrent°汾
-        if (lcaCommitId.equals(targetBranchHeadCommit.getId())) {
+        // 先看两个分支是不是一个是另一个的祖先（有可达位图时直接查位图），是的话不用找共同祖先
+        CommitGraph graph = loadCommitGraph(Arrays.asList(HEADCommit.get().getId(), targetBranchHeadCommit.getId()));
+        int HEADCommitPos = graph.lookup(HEADCommit.get().getId());
+        int targetBranchHeadCommitPos = graph.lookup(targetBranchHeadCommit.getId());
+        // 如果target是current的祖先的话，这种不需要合并，current就是最新版本
+        if (graph.isAncestor(targetBranchHeadCommitPos, HEADCommitPos)) {
             exit("Given branch is an ancestor of the current branch.");
         }
-        // currenttargetȵĻҵlcacurrent൱checkouttarget
-        if (lcaCommitId.equals(HEADCommit.get().getId())) {
+        // 如果current是target的祖先的话，这种相当于checkout到target
+        if (graph.isAncestor(HEADCommitPos, targetBranchHeadCommitPos)) {
             checkoutCommit(targetBranchHeadCommit);
             setCurrentBranch(targetBranchName);
             exit("Current branch fast-forwarded.");
         }
+        // 拿到共同的祖先commit
+        Commit lcaCommit = getLatestCommonAncestorCommit(HEADCommit.get(), targetBranchHeadCommit);
 
         boolean hasConflict = false;
-        // ǰcommitļաĿcommitļաͬȵļ
+        // 当前commit的文件快照、目标commit的文件快照、共同祖先的文件快照
         Map<String, String> HEADCommitTrackedFilesMap = new HashMap<>(HEADCommit.get().getTracked());
-        Map<String, String> targetBranchHeadCommitTrackedFilesMap = targetBranchHeadCommit.getTracked();
+        Map<String, String> targetBranchHeadCommitTrackedFilesMap = new HashMap<>(targetBranchHeadCommit.getTracked());
         Map<String, String> lcaCommitTrackedFilesMap = lcaCommit.getTracked();
+        // 直接取 target 版本的文件，最后一起（并行）写出来
+        List<String> targetFilePaths = new ArrayList<>();
+        // 两边都改了（或者都新增了）的文件：{路径, 祖先的 blob id（可能为 null）, current 的, target 的}，最后逐行合并
+        List<String[]> mergedFiles = new ArrayList<>();
 
         for (Map.Entry<String, String> entry : lcaCommitTrackedFilesMap.entrySet()) {
-            // õȿԭʼ汾ļ
+            // 拿到祖先快照原始版本文件
             String filePath = entry.getKey();
             File file = new File(filePath);
             String blobId = entry.getValue();
-            // õtargetcurrentİ汾
+            // 拿到target和current的版本
             String targetBranchHeadCommitBlobId = targetBranchHeadCommitTrackedFilesMap.get(filePath);
             String HEADCommitBlobId = HEADCommitTrackedFilesMap.get(filePath);
-            // target汾ļ
+            // target当中有这个版本的文件
             if (targetBranchHeadCommitBlobId != null) {
-                // targetиĶ
+                // target有改动
                 if (!targetBranchHeadCommitBlobId.equals(blobId)) {
-                    // HeadҲļ
+                    // Head也有这个文件
                     if (HEADCommitBlobId != null) {
-                        // HeadûиĶ
+                        // Head没有改动
                         if (HEADCommitBlobId.equals(blobId)) {
-                            // ¼targetİ汾
-                            Blob.fromFile(targetBranchHeadCommitBlobId).writeContentToSource();
-                            stagingArea.get().add(file);
+                            // 记录target的版本
+                            targetFilePaths.add(filePath);
                         } else {
-                            // HeadҲиĶĶһ
+                            // Head也有改动，但改动不一样
                             if (!HEADCommitBlobId.equals(targetBranchHeadCommitBlobId)) {
-                                // ˵гͻ
-                                hasConflict = true;
-                                // õͻݲдļ
-                                String conflictContent = getConflictContent(HEADCommitBlobId, targetBranchHeadCommitBlobId);
-                                writeContents(file, conflictContent);
-                                stagingArea.get().add(file);
+                                // 逐行合并，两边改的地方重叠才有冲突
+                                mergedFiles.add(new String[]{filePath, blobId, HEADCommitBlobId,
+                                        targetBranchHeadCommitBlobId});
                             }
                         }
                     } else {
-                        // current ûļѾɾ
+                        // current 中没有这个文件，已经删除了
                         hasConflict = true;
-                        // дtargetݼ
-                        String conflictContent = getConflictContent(null, targetBranchHeadCommitBlobId);
-                        writeContents(file, conflictContent);
+                        // 写入target的内容即可
+                        writeConflictFile(file, null, targetBranchHeadCommitBlobId);
                         stagingArea.get().add(file);
                     }
                 }
             } else {
-                // targetû汾
-                // current汾
+                // target中没有这个版本的内容
+                // current中有这个版本
                 if (HEADCommitBlobId != null) {
                     if (HEADCommitBlobId.equals(blobId)) {
-                        // currentû޸ģ˵ɾ²ɾ˾
+                        // current没做修改，说明删除是新操作，删除了就行
                         stagingArea.get().remove(file);
                     } else {
-                        // currentˣcurrent
+                        // current改了，保存current内容
                         hasConflict = true;
-                        String conflictContent = getConflictContent(HEADCommitBlobId, null);
-                        writeContents(file, conflictContent);
+                        writeConflictFile(file, HEADCommitBlobId, null);
                         stagingArea.get().add(file);
                     }
                 }
             }
-            // ϲ
+            // 合并处理完成
             HEADCommitTrackedFilesMap.remove(filePath);
             targetBranchHeadCommitTrackedFilesMap.remove(filePath);
         }
 
-        // ûУcurrenttargetļcurrenttargetûвõģΪֲҪ⴦Աtargetɣ
+        // 处理祖先中没有，后续current和target新增的文件（current有target没有不用担心，因为这种不需要额外处理，所以遍历target即可）
         for (Map.Entry<String, String> entry : targetBranchHeadCommitTrackedFilesMap.entrySet()) {
             String targetBranchHeadCommitFilePath = entry.getKey();
             File targetBranchHeadCommitFile = new File(targetBranchHeadCommitFilePath);
             String targetBranchHeadCommitBlobId = entry.getValue();
 
             String HEADCommitBlobId = HEADCommitTrackedFilesMap.get(targetBranchHeadCommitFilePath);
-            // ߶ļ
+            // 两边都添加了这个文件
             if (HEADCommitBlobId != null) {
-                // ޸ĳͻ
+                // 修改冲突
                 if (!HEADCommitBlobId.equals(targetBranchHeadCommitBlobId)) {
-                    hasConflict = true;
-                    String conflictContent = getConflictContent(HEADCommitBlobId, targetBranchHeadCommitBlobId);
-                    writeContents(targetBranchHeadCommitFile, conflictContent);
-                    stagingArea.get().add(targetBranchHeadCommitFile);
+                    mergedFiles.add(new String[]{targetBranchHeadCommitFilePath, null, HEADCommitBlobId,
+                            targetBranchHeadCommitBlobId});
                 }
-                // ˵޸ķʽһ£ù˾
+                // 否则说明修改方式一致，不用管了就
             } else {
-                // targetcurrentû
-                // ӽ
-                Blob.fromFile(targetBranchHeadCommitBlobId).writeContentToSource();
-                stagingArea.get().add(targetBranchHeadCommitFile);
+                // target有current没有
+                // 添加进来即可
+                targetFilePaths.add(targetBranchHeadCommitFilePath);
             }
         }
+        targetBranchHeadCommit.restoreTracked(targetFilePaths);
+        for (String filePath : targetFilePaths) {
+            stagingArea.get().add(new File(filePath));
+        }
+        // 各个文件的合并互不相关，在线程池里并行
+        AtomicBoolean mergeConflict = new AtomicBoolean();
+        parallelForEach(mergedFiles, mergedFile -> {
+            if (mergeFile(mergedFile[0], mergedFile[1], mergedFile[2], mergedFile[3])) {
+                mergeConflict.set(true);
+            }
+        });
+        hasConflict |= mergeConflict.get();
+        for (String[] mergedFile : mergedFiles) {
+            stagingArea.get().add(new File(mergedFile[0]));
+        }
 
         String newCommitMessage = "Merged" + " " + targetBranchName + " " + "into" + " " + currentBranch.get() + ".";
         commit(newCommitMessage, targetBranchHeadCommit.getId());
-        // ʾûmergeĳͻ
+        // 提示用户解决merge的冲突
         if (hasConflict) {
             message("Encountered a merge conflict.");
         }
     }
 
     /**
-     * õcommitͬȵcommit֧ԭһֻ֧ģҵͬȲֻ֪ʲô仯
+     * 拿到俩个commit共同祖先的commit（两个分支原本总是一个分支分化的，找到共同祖先才知道分化后各自有什么变化）
+     * 有多个最好的共同祖先时（交叉合并过），取最新的那个
      * @param commitA Commit instance
      * @param commitB Commit instance
      * @return Commit SHA1 id
      */
-    @SuppressWarnings("ConstantConditions")
     private static Commit getLatestCommonAncestorCommit(Commit commitA, Commit commitB) {
-        // ʱȶ
-        Comparator<Commit> commitComparator = Comparator.comparing(Commit::getDate).reversed();
-        Queue<Commit> commitsQueue = new PriorityQueue<>(commitComparator);
-        commitsQueue.add(commitA);
-        commitsQueue.add(commitB);
-        // ʼһϣ洢ѾύID
-        Set<String> checkedCommitIds = new HashSet<>();
-        while (true) {
-            // commit
-            Commit latestCommit = commitsQueue.poll();
-            List<String> parentCommitIds = latestCommit.getParents();
-            String firstParentCommitId = parentCommitIds.get(0);
-            Commit firstParentCommit = Commit.fromFile(firstParentCommitId);
-            // ѾcheckedĻ˵ҵͬ
-            if (checkedCommitIds.contains(firstParentCommitId)) {
-                return firstParentCommit;
-            }
-            commitsQueue.add(firstParentCommit);
-            checkedCommitIds.add(firstParentCommitId);
-        }
-    }
-
-    /**
-     * mergeĳͻʱõͻ
-     * @param currentBlobId ǰcommitid
-     * @param targetBlobId  Ŀcommitid
-     * @return New content
-     */
-    private static String getConflictContent(String currentBlobId, String targetBlobId) {
-        // Head
-        StringBuilder contentBuilder = new StringBuilder();
-        contentBuilder.append("<<<<<<< HEAD").append("\n");
-        if (currentBlobId != null) {
-            Blob currentBlob = Blob.fromFile(currentBlobId);
-            contentBuilder.append(currentBlob.getContentAsString());
-        }
-        // target
-        contentBuilder.append("=======").append("\n");
-        if (targetBlobId != null) {
-            Blob targetBlob = Blob.fromFile(targetBlobId);
-            contentBuilder.append(targetBlob.getContentAsString());
-        }
-        contentBuilder.append(">>>>>>>");
-        return contentBuilder.toString();
+        List<String> mergeBases = getMergeBases(commitA.getId(), commitB.getId());
+        if (mergeBases.isEmpty()) {
+            exit("No common ancestor.");
+        }
+        return Commit.fromFile(mergeBases.get(0));
+    }
+
+    /**
+     * 两个 commit 所有最好的共同祖先（沿所有的 parent 走，见 CommitGraph.getMergeBases）
+     * @param commitIdA 第一个 commit id
+     * @param commitIdB 第二个 commit id
+     * @return 共同祖先的 commit id，最新的在前
+     */
+    private static List<String> getMergeBases(String commitIdA, String commitIdB) {
+        CommitGraph graph = loadCommitGraph(Arrays.asList(commitIdA, commitIdB));
+        List<String> mergeBases = new ArrayList<>();
+        for (int pos : graph.getMergeBases(graph.lookup(commitIdA), graph.lookup(commitIdB))) {
+            mergeBases.add(graph.getId(pos));
+        }
+        return mergeBases;
+    }
+
+    /**
+     * 打印两个 commit（分支名或者 commit id）所有最好的共同祖先，每行一个
+     * @param revA 第一个分支名或 commit id
+     * @param revB 第二个分支名或 commit id
+     */
+    public static void mergeBase(String revA, String revB) {
+        List<String> mergeBases = getMergeBases(resolveCommitId(revA), resolveCommitId(revB));
+        if (mergeBases.isEmpty()) {
+            exit("No common ancestor.");
+        }
+        StringBuilder resultBuilder = new StringBuilder();
+        for (String commitId : mergeBases) {
+            resultBuilder.append(commitId).append("\n");
+        }
+        System.out.print(resultBuilder);
+    }
+
+    // 分支名 => 分支头的 commit id，否则当作（可能不完整的）commit id
+    private static String resolveCommitId(String rev) {
+        String branchHeadCommitId = Refs.read(rev);
+        if (branchHeadCommitId != null) {
+            return branchHeadCommitId;
+        }
+        return getActualCommitId(rev);
+    }
+
+    /**
+     * 把所有分支写进排好序的 packed-refs，删除松散的分支文件：分支很多时 status、gc 只读一个文件，
+     * 查找一个分支在 packed-refs 里二分查找
+     */
+    public static void packRefs() {
+        Refs.pack();
+    }
+
+    /**
+     * 把所有可达的对象（各分支能走到的commit、它们跟踪的blob、暂存区add的blob）写进一个新的pack，
+     * 然后删除旧的pack和已经打包的松散对象。不可达的松散对象保留不动
+     */
+    public void gc() {
+        PackWriter packWriter = new PackWriter();
+        // 路径 => blob id，先收集起来（只有 id），最后按路径排序再打包
+        List<Map.Entry<String, String>> blobs = new ArrayList<>();
+        forEachCommit(commit -> {
+            // 重新编码，旧仓库里 Java 序列化的对象也顺便转成新格式
+            packWriter.add(commit.getId(), ObjectCodec.encode(commit));
+            if (commit.getTreeId() != null) {
+                addTreeToPack(packWriter, commit.getTreeId(), "", blobs);
+                return;
+            }
+            blobs.addAll(commit.getTracked().entrySet());
+        });
+        blobs.addAll(stagingArea.get().getAdded().entrySet());
+        // 同一路径的 blob 尽量写成相对上一个版本的增量：排序是稳定的，同一路径的各个版本排在一起、保持从新到旧，
+        // 一次改了很多文件的 commit 也不会把增量基础挤出 pack.window
+        blobs.sort(Map.Entry.comparingByKey());
+        for (Map.Entry<String, String> entry : blobs) {
+            addBlobToPack(packWriter, entry.getValue(), entry.getKey());
+        }
+        String packName = packWriter.finish();
+        writeBitmaps(PackFile.open(packName));
+
+        // 删除旧的pack：新pack里没有的对象（不可达的）先写回松散对象，和不可达的松散对象一样保留下来
+        for (PackFile packFile : PackFile.getPacks()) {
+            if (!packFile.getPackFile().getName().startsWith(packName + ".")) {
+                for (int i = 0; i < packFile.size(); i++) {
+                    String id = packFile.getId(i);
+                    if (!packWriter.contains(id)) {
+                        saveLooseObject(id);
+                    }
+                }
+                rm(packFile.getIdxFile());
+                rm(packFile.getPackFile());
+                if (packFile.getBitmapFile().exists()) {
+                    rm(packFile.getBitmapFile());
+                }
+            }
+        }
+        // 删除已经打包的松散对象，以及删空了的文件夹
+        for (File objectDir : OBJECTS_DIR.listFiles(File::isDirectory)) {
+            if (objectDir.equals(PackFile.PACK_DIR)) {
+                continue;
+            }
+            for (File objectFile : objectDir.listFiles()) {
+                if (packWriter.contains(objectDir.getName() + objectFile.getName())) {
+                    rm(objectFile);
+                }
+            }
+            if (objectDir.list().length == 0) {
+                rm(objectDir);
+            }
+        }
+    }
+
+    /**
+     * 给新的 pack 写可达位图：各分支的头，以及 generation 是 BITMAP_INTERVAL 整数倍的 commit
+     * 按 generation 从小到大计算，每个 commit 往下走到已经有位图的 commit 就直接合并它的位图
+     * @param packFile 新的 pack
+     */
+    private static void writeBitmaps(PackFile packFile) {
+        CommitGraph graph = loadCommitGraph(getBranchHeadCommitIds());
+        Set<Integer> selected = new HashSet<>();
+        for (String branchHeadCommitId : getBranchHeadCommitIds()) {
+            selected.add(graph.lookup(branchHeadCommitId));
+        }
+        Set<Integer> checkedCommits = new HashSet<>(selected);
+        Deque<Integer> queue = new ArrayDeque<>(selected);
+        while (!queue.isEmpty()) {
+            int pos = queue.poll();
+            if (graph.getGeneration(pos) % BITMAP_INTERVAL == 0) {
+                selected.add(pos);
+            }
+            for (int i = 0; i < graph.getParentCount(pos); i++) {
+                int parent = graph.getParent(pos, i);
+                if (checkedCommits.add(parent)) {
+                    queue.add(parent);
+                }
+            }
+        }
+        List<Integer> order = new ArrayList<>(selected);
+        order.sort(Comparator.comparingInt(graph::getGeneration));
+        Map<String, BitSet> bitmaps = new LinkedHashMap<>();
+        // 大文件的 blob 不在 pack 里，位图里没有，和位图一起记下来
+        Map<String, Set<String>> looseIds = new HashMap<>();
+        for (int pos : order) {
+            ReachableObjects reachable = new ReachableObjects(packFile, bitmaps::get, looseIds::get);
+            reachable.addCommits(graph, Collections.singletonList(pos));
+            bitmaps.put(graph.getId(pos), reachable.packed);
+            looseIds.put(graph.getId(pos), reachable.unpacked);
+        }
+        PackWriter.writeBitmaps(packFile, bitmaps, looseIds);
+    }
+
+    /**
+     * 打印从 revs 可达（以 '^' 开头的表示排除从它可达的）的所有对象的 id：commit、tree、blob 和块，
+     * 有可达位图时用位图的并集和差集计算
+     * @param revs 分支名或 commit id
+     */
+    public static void revList(String[] revs) {
+        List<String> included = new ArrayList<>();
+        List<String> excluded = new ArrayList<>();
+        for (String rev : revs) {
+            if (rev.startsWith("^")) {
+                excluded.add(resolveCommitId(rev.substring(1)));
+            } else {
+                included.add(resolveCommitId(rev));
+            }
+        }
+        List<String> all = new ArrayList<>(included);
+        all.addAll(excluded);
+        CommitGraph graph = loadCommitGraph(all);
+        PackFile packFile = PackFile.getBitmapPack();
+        if (packFile == null && !PackFile.getPacks().isEmpty()) {
+            packFile = PackFile.getPacks().get(0);
+        }
+        Function<String, BitSet> bitmapOf = packFile == null ? id -> null : packFile::getBitmap;
+        Function<String, Collection<String>> looseOf = packFile == null ? id -> null : packFile::getBitmapLooseIds;
+        ReachableObjects result = new ReachableObjects(packFile, bitmapOf, looseOf);
+        result.addCommits(graph, toGraphPositions(graph, included));
+        ReachableObjects exclude = new ReachableObjects(packFile, bitmapOf, looseOf);
+        exclude.addCommits(graph, toGraphPositions(graph, excluded));
+        result.packed.andNot(exclude.packed);
+        result.unpacked.removeAll(exclude.unpacked);
+
+        List<String> objectIds = new ArrayList<>(result.unpacked);
+        for (int i = result.packed.nextSetBit(0); i >= 0; i = result.packed.nextSetBit(i + 1)) {
+            objectIds.add(packFile.getId(i));
+        }
+        Collections.sort(objectIds);
+        StringBuilder resultBuilder = new StringBuilder();
+        for (String objectId : objectIds) {
+            resultBuilder.append(objectId).append("\n");
+        }
+        System.out.print(resultBuilder);
+    }
+
+    private static List<Integer> toGraphPositions(CommitGraph graph, List<String> commitIds) {
+        List<Integer> positions = new ArrayList<>();
+        for (String commitId : commitIds) {
+            positions.add(graph.lookup(commitId));
+        }
+        return positions;
+    }
+
+    /**
+     * 一组可达的对象：pack 里的用位图记录（第 i 位表示 pack 索引里第 i 个对象），不在 pack 里的（gc 之后的新对象）记录 id
+     * tree 在集合里就说明它下面的对象也都在，不用再往下走；有位图的 commit 直接合并位图，不用再往下走
+     */
+    private static class ReachableObjects {
+        private final PackFile packFile;
+        // commit id => 从它可达的对象的位图（没有返回 null）
+        private final Function<String, BitSet> bitmapOf;
+        // 有位图的 commit id => 从它可达、但不在 pack 里的对象（位图里没有）
+        private final Function<String, ? extends Collection<String>> looseOf;
+        private final BitSet packed = new BitSet();
+        private final Set<String> unpacked = new HashSet<>();
+
+        ReachableObjects(PackFile packFile, Function<String, BitSet> bitmapOf,
+                         Function<String, ? extends Collection<String>> looseOf) {
+            this.packFile = packFile;
+            this.bitmapOf = bitmapOf;
+            this.looseOf = looseOf;
+        }
+
+        // 加入一个对象，原来就在返回 false
+        private boolean add(String id) {
+            int index = packFile == null ? -1 : packFile.find(ObjectCodec.idToBytes(id));
+            if (index < 0) {
+                return unpacked.add(id);
+            }
+            if (packed.get(index)) {
+                return false;
+            }
+            packed.set(index);
+            return true;
+        }
+
+        // 加入这些 commit 和它们能走到的所有对象
+        void addCommits(CommitGraph graph, Collection<Integer> starts) {
+            Set<Integer> checkedCommits = new HashSet<>(starts);
+            Deque<Integer> stack = new ArrayDeque<>(starts);
+            while (!stack.isEmpty()) {
+                int pos = stack.pop();
+                String commitId = graph.getId(pos);
+                BitSet bitmap = bitmapOf.apply(commitId);
+                if (bitmap != null) {
+                    packed.or(bitmap);
+                    unpacked.addAll(looseOf.apply(commitId));
+                    continue;
+                }
+                if (add(commitId)) {
+                    Commit commit = Commit.fromFile(commitId);
+                    if (commit.getTreeId() != null) {
+                        addTree(commit.getTreeId());
+                    } else {
+                        for (String blobId : commit.getTracked().values()) {
+                            addBlob(blobId);
+                        }
+                    }
+                }
+                for (int i = 0; i < graph.getParentCount(pos); i++) {
+                    int parent = graph.getParent(pos, i);
+                    if (checkedCommits.add(parent)) {
+                        stack.push(parent);
+                    }
+                }
+            }
+        }
+
+        private void addTree(String treeId) {
+            if (!add(treeId)) {
+                return;
+            }
+            Tree tree = Tree.fromFile(treeId);
+            for (String blobId : tree.getFiles().values()) {
+                addBlob(blobId);
+            }
+            for (String subTreeId : tree.getDirs().values()) {
+                addTree(subTreeId);
+            }
+        }
+
+        private void addBlob(String blobId) {
+            if (add(blobId)) {
+                for (String chunkId : Blob.fromFile(blobId).getChunkIds()) {
+                    add(chunkId);
+                }
+            }
+        }
+    }
+
+    // 打包 tree，收集它下面的 blob，已经打包过的 tree 整个跳过（没有变化的目录在各个 commit 之间是同一个 tree）
+    private static void addTreeToPack(PackWriter packWriter, String treeId, String prefix,
+                                      List<Map.Entry<String, String>> blobs) {
+        if (packWriter.contains(treeId)) {
+            return;
+        }
+        packWriter.add(treeId, readObjectBytes(treeId));
+        Tree tree = Tree.fromFile(treeId);
+        for (Map.Entry<String, String> entry : tree.getFiles().entrySet()) {
+            blobs.add(new AbstractMap.SimpleImmutableEntry<>(join(CWD, prefix + entry.getKey()).getPath(),
+                    entry.getValue()));
+        }
+        for (Map.Entry<String, String> entry : tree.getDirs().entrySet()) {
+            addTreeToPack(packWriter, entry.getValue(), prefix + entry.getKey() + "/", blobs);
+        }
+    }
+
+    // 大文件不打包，如果它之前被打进了旧的 pack，先解出来放回松散对象，删除旧 pack 时才不会丢
+    // 切块存储的 blob 的块跟着 blob 走：blob 打包块也打包，blob 太大（按文件本身的大小算）块也都不打包
+    private static void addBlobToPack(PackWriter packWriter, String blobId, String filePath) {
+        if (packWriter.contains(blobId) || packWriter.isLooseBlob(blobId)) {
+            return;
+        }
+        Blob blob = Blob.fromFile(blobId);
+        if (packWriter.addBlob(blobId, blob.getSize(), filePath)) {
+            for (String chunkId : blob.getChunkIds()) {
+                packWriter.add(chunkId, readObjectBytes(chunkId));
+            }
+            return;
+        }
+        // 大文件：blob 和它的块都留在 pack 外面（原来在旧 pack 里的写回松散对象）
+        saveLooseObject(blobId);
+        for (String chunkId : blob.getChunkIds()) {
+            saveLooseObject(chunkId);
+        }
+    }
+
+    // 运行文件系统监视器（一直运行，直到进程被结束）
+    public void fsmonitor() {
+        FsMonitor.run();
+    }
+
+    /**
+     * 把旧仓库（blob 的 id 由路径和内容生成）迁移为内容寻址：
+     * 所有可达的 commit 按 parent 在前的顺序重写，blob 换成只由内容生成的 id，
+     * commit 保留原来的日期和 message，但 id 会变；最后更新各分支、暂存区和配置
+     */
+    public void migrate() {
+        if (Config.getBoolean(Config.CORE_CONTENT_ADDRESSED_BLOBS, false)) {
+            exit("Repository already uses content-addressed blobs.");
+        }
+        // 旧 blob id => 新 blob id
+        Map<String, String> blobIds = new HashMap<>();
+        // 旧 commit id => 新 commit id
+        Map<String, String> commitIds = new HashMap<>();
+        // 所有可达的 commit
+        Map<String, Commit> commits = new HashMap<>();
+        forEachCommit(commit -> commits.put(commit.getId(), commit));
+
+        // 非递归的后序遍历，保证 parent 先于 child 重写（历史很长时递归会栈溢出）
+        Deque<String> stack = new ArrayDeque<>(commits.keySet());
+        while (!stack.isEmpty()) {
+            String commitId = stack.peek();
+            if (commitIds.containsKey(commitId)) {
+                stack.pop();
+                continue;
+            }
+            Commit commit = commits.get(commitId);
+            boolean parentsDone = true;
+            for (String parentId : commit.getParents()) {
+                if (!commitIds.containsKey(parentId)) {
+                    stack.push(parentId);
+                    parentsDone = false;
+                }
+            }
+            if (!parentsDone) {
+                continue;
+            }
+            stack.pop();
+            List<String> newParents = new ArrayList<>();
+            for (String parentId : commit.getParents()) {
+                newParents.add(commitIds.get(parentId));
+            }
+            Map<String, String> newTracked = new HashMap<>();
+            for (Map.Entry<String, String> entry : commit.getTracked().entrySet()) {
+                newTracked.put(entry.getKey(), migrateBlob(entry.getValue(), blobIds));
+            }
+            Commit newCommit = new Commit(commit.getMessage(), newParents, newTracked, commit.getDate());
+            newCommit.save();
+            commitIds.put(commitId, newCommit.getId());
+        }
+
+        // 更新各分支的头
+        for (Map.Entry<String, String> entry : Refs.readAll().entrySet()) {
+            setBranchHeadCommit(entry.getKey(), commitIds.get(entry.getValue()));
+        }
+        // 重写出来的 commit 加进 commit-graph
+        loadCommitGraph(getBranchHeadCommitIds());
+        // 更新暂存区 add 的 blob
+        Map<String, String> addedFilesMap = stagingArea.get().getAdded();
+        for (Map.Entry<String, String> entry : addedFilesMap.entrySet()) {
+            entry.setValue(migrateBlob(entry.getValue(), blobIds));
+        }
+        // 缓存的是旧规则算出来的 id
+        stagingArea.get().clearStatCache();
+        stagingArea.get().save();
+        Config.set(Config.CORE_CONTENT_ADDRESSED_BLOBS, "true");
+    }
+
+    /**
+     * 把旧 blob 换成内容寻址的 blob（内容一样的只保存一次）
+     * @param blobId  旧 blob id
+     * @param blobIds 已经迁移过的 旧 blob id => 新 blob id
+     * @return 新 blob id
+     */
+    private static String migrateBlob(String blobId, Map<String, String> blobIds) {
+        String newBlobId = blobIds.get(blobId);
+        if (newBlobId == null) {
+            Blob newBlob = Blob.fromContent(Blob.fromFile(blobId).getContent());
+            newBlobId = newBlob.getId();
+            if (!objectExists(newBlobId)) {
+                newBlob.save();
+            }
+            blobIds.put(blobId, newBlobId);
+        }
+        return newBlobId;
+    }
+
+    /**
+     * 逐行三方合并一个两边都改了的文件，结果写进工作区（见 Merge3）；
+     * 有二进制文件或者大文件（超过 Config.CORE_BIG_FILE_THRESHOLD）时不逐行合并，整个文件冲突
+     * @param filePath      文件路径
+     * @param baseBlobId    共同祖先的版本，null 表示两边都是新增的
+     * @param currentBlobId 当前分支的版本
+     * @param targetBlobId  目标分支的版本
+     * @return 是否有冲突
+     */
+    private static boolean mergeFile(String filePath, String baseBlobId, String currentBlobId, String targetBlobId) {
+        File file = new File(filePath);
+        // 先只看大小和开头，不把大文件读进内存
+        long bigFileThreshold = Config.getInt(Config.CORE_BIG_FILE_THRESHOLD, 32 << 20);
+        for (String blobId : Arrays.asList(baseBlobId, currentBlobId, targetBlobId)) {
+            if (blobId == null) {
+                continue;
+            }
+            Blob blob = Blob.fromFile(blobId);
+            if (blob.getSize() > bigFileThreshold || blob.isBinary()) {
+                writeConflictFile(file, currentBlobId, targetBlobId);
+                return true;
+            }
+        }
+        Lines base = new Lines(baseBlobId == null ? new byte[0] : Blob.fromFile(baseBlobId).getContent());
+        Lines current = new Lines(Blob.fromFile(currentBlobId).getContent());
+        Lines target = new Lines(Blob.fromFile(targetBlobId).getContent());
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            return Merge3.merge(base, current, target, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * merge发生整个文件的冲突时，把两边的内容加上冲突标记写入文件
+     * 内容直接从对象流式复制到文件（不解码，二进制文件也原样保留），再大的文件也只用一个缓冲区
+     * @param file          冲突的文件
+     * @param currentBlobId 当前分支的版本，null 表示已经删除
+     * @param targetBlobId  目标分支的版本，null 表示已经删除
+     */
+    private static void writeConflictFile(File file, String currentBlobId, String targetBlobId) {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            // Head的内容
+            out.write("<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8));
+            if (currentBlobId != null) {
+                Blob.fromFile(currentBlobId).writeContentTo(out);
+            }
+            // target的内容
+            out.write("=======\n".getBytes(StandardCharsets.UTF_8));
+            if (targetBlobId != null) {
+                Blob.fromFile(targetBlobId).writeContentTo(out);
+            }
+            out.write(">>>>>>>".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
 
@@ -1,74 +1,512 @@
 package gitlet.bean;
 
-import java.io.File;
-import java.io.Serializable;
+import gitlet.util.Chunker;
+import gitlet.util.Config;
+import gitlet.util.Encodable;
+import gitlet.util.Lines;
+import gitlet.util.ObjectCodec;
+import gitlet.util.ObjectStream;
+
+import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 
-import static gitlet.util.MyUtils.getObjectFile;
-import static gitlet.util.MyUtils.saveObjectFile;
+import static gitlet.util.MyUtils.*;
 import static gitlet.util.Utils.*;
 
-// gitletļ
-public class Blob implements Serializable {
-    // Դļ
-    private final File source;
-    // Դļ
-    private final byte[] content;
-    // SHA1idpathcontentһɣֻ·ݶһһid
+// 代表gitlet管理的文件对象
+// 文件内容不放在对象里：计算id、保存、检出都是按固定大小的缓冲区流式读写，内存占用和文件大小无关
+// 超过 core.chunkThreshold 的文件按内容切块（见 Chunker），每块单独存一次，blob 只记录块的列表；
+// 大文件改了一部分再提交时，只有变了的块需要写入
+public class Blob implements Encodable {
+    // 与旧版本 Java 序列化的类保持一致，旧仓库里的 blob 才能继续读
+    private static final long serialVersionUID = -6355173998915381353L;
+    // 负载格式版本：1 的负载里还有源文件路径，2 是内容长度 + 内容，3 只有文件内容（长度就是负载长度）
+    private static final byte VERSION = 3;
+    // 切块存储的 blob 的负载版本：内容总长度(8字节) + 块数(4字节) + 每块的 id(20字节) 和长度(4字节)
+    private static final byte MANIFEST_VERSION = 4;
+    // 块的负载版本：块的内容
+    private static final byte CHUNK_VERSION = 1;
+    // 内容寻址的 blob id 的前缀，和 commit 的 id 区分开
+    private static final String CONTENT_ID_PREFIX = "blob";
+    // 块的 id 的前缀（块总是内容寻址的）
+    private static final String CHUNK_ID_PREFIX = "chunk";
+    // 流式读写的缓冲区大小
+    private static final int BUFFER_SIZE = 8192;
+    // 文件内容（只有迁移时用内容创建的 blob 和旧仓库反序列化出来的 blob 才有）
+    private byte[] content;
+    // SHA1处理后的id（新仓库只由内容生成，同样的内容在不同路径下是同一个blob；
+    // 没有迁移过的旧仓库由path和content一起生成）
     private final String id;
-    // blobļ
+    // 处理后的blob对象的文件
     private final File file;
-    // ݴsourceFile µļ󣨶ݣ
+    // 工作区里的源文件（add 时创建的 blob 才有）
+    private transient File source;
+
+    // 根据传入的sourceFile 创建新的文件对象（流式计算id，不读入内容）
     public Blob(File sourceFile) {
+        this(sourceFile, generateId(sourceFile));
+    }
+
+    // 已经知道id时使用（见 StagingArea.getBlobId），保存时还会再校验一次
+    public Blob(File sourceFile, String id) {
         source = sourceFile;
-        String filePath = sourceFile.getPath();
-        content = readContents(sourceFile);
-        id = sha1(filePath, content);
+        this.id = id;
         file = getObjectFile(id);
     }
 
-    //ѱBolbдӦObjectļʵֳ־û
+    // 迁移时使用：直接用内容和id创建；content 为 null 时只是一个对象的引用，内容从对象文件里读
+    private Blob(String id, byte[] content) {
+        this.id = id;
+        this.content = content;
+        file = getObjectFile(id);
+    }
+
+    /**
+     * 用内容创建一个内容寻址的 blob（迁移旧仓库时使用）
+     * @param content 文件内容
+     * @return Blob instance
+     */
+    public static Blob fromContent(byte[] content) {
+        return new Blob(sha1(CONTENT_ID_PREFIX, content), content);
+    }
+
+    /**
+     * 计算 blob id 用的 MessageDigest：仓库配置了内容寻址就只用内容，否则和旧版本一样先放入 path
+     * @param filePath 文件路径
+     * @return 放好前缀的 MessageDigest，接下来放入文件内容
+     */
+    private static MessageDigest newDigest(String filePath) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            if (Config.getBoolean(Config.CORE_CONTENT_ADDRESSED_BLOBS, false)) {
+                md.update(CONTENT_ID_PREFIX.getBytes(StandardCharsets.UTF_8));
+            } else {
+                md.update(filePath.getBytes(StandardCharsets.UTF_8));
+            }
+            return md;
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+
+    /**
+     * 把源文件流式写入对象文件：先写临时文件，边写边重新计算 SHA1，和 id 一致才改名为对象文件
+     * 大文件切块存储；迁移时用内容创建的 blob 直接编码写入
+     */
     public void save() {
-        saveObjectFile(file, this);
+        if (source == null) {
+            saveObjectFile(file, this);
+            return;
+        }
+        long size = source.length();
+        if (size > Config.getInt(Config.CORE_CHUNK_THRESHOLD, 8 << 20)) {
+            saveChunked();
+            return;
+        }
+        if (size > Integer.MAX_VALUE) {
+            exit("File too large: %s", source.getPath());
+        }
+        File dir = file.getParentFile();
+        if (!dir.exists()) {
+            mkdir(dir);
+        }
+        MessageDigest md = newDigest(source.getPath());
+        long written = 0;
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile("tmp_obj_", null, dir);
+            try (InputStream in = new FileInputStream(source);
+                 OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(tmpFile));
+                 OutputStream out = ObjectCodec.openOutput(fileOut, ObjectCodec.TYPE_BLOB, VERSION,
+                         (int) size, Config.getCompressionLevel())) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int n;
+                // 最多写计算 id 时的长度，写入的内容和 id 对得上就行
+                while (written < size
+                        && (n = in.read(buffer, 0, (int) Math.min(buffer.length, size - written))) > 0) {
+                    md.update(buffer, 0, n);
+                    out.write(buffer, 0, n);
+                    written += n;
+                }
+            }
+            // 计算 id 之后文件又被改过，写进去的内容就和 id 对不上了
+            if (written != size || !ObjectCodec.bytesToId(md.digest()).equals(id)) {
+                tmpFile.delete();
+                exit("File changed while adding: %s", source.getPath());
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
     }
 
-    // ȡblobid
+    /**
+     * 把源文件切块，只写入还不存在的块，最后写入块的列表
+     */
+    private void saveChunked() {
+        MessageDigest md = newDigest(source.getPath());
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        DataOutputStream manifestOut = new DataOutputStream(manifest);
+        long size = 0;
+        int count = 0;
+        try (InputStream in = new FileInputStream(source)) {
+            Chunker chunker = new Chunker(in);
+            byte[] chunk = new byte[Chunker.MAX_SIZE];
+            int n;
+            while ((n = chunker.next(chunk)) > 0) {
+                md.update(chunk, 0, n);
+                ObjectCodec.writeId(manifestOut, saveChunk(chunk, n));
+                manifestOut.writeInt(n);
+                size += n;
+                count++;
+            }
+            // 计算 id 之后文件又被改过（已经写入的块没有被引用，不影响什么）
+            if (!ObjectCodec.bytesToId(md.digest()).equals(id)) {
+                exit("File changed while adding: %s", source.getPath());
+            }
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(ObjectCodec.openOutput(result, ObjectCodec.TYPE_BLOB,
+                    MANIFEST_VERSION, 8 + 4 + manifest.size(), Config.getCompressionLevel()))) {
+                out.writeLong(size);
+                out.writeInt(count);
+                manifest.writeTo(out);
+            }
+            writeObjectBytes(file, result.toByteArray());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 写入一个块，已经存在的块不再写
+     * @param chunk  块所在的缓冲区
+     * @param length 块的长度
+     * @return 块的 id
+     */
+    private static String saveChunk(byte[] chunk, int length) throws IOException {
+        String chunkId;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            md.update(CHUNK_ID_PREFIX.getBytes(StandardCharsets.UTF_8));
+            md.update(chunk, 0, length);
+            chunkId = ObjectCodec.bytesToId(md.digest());
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+        if (!objectExists(chunkId)) {
+            ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 16);
+            try (OutputStream out = ObjectCodec.openOutput(result, ObjectCodec.TYPE_CHUNK, CHUNK_VERSION,
+                    length, Config.getCompressionLevel())) {
+                out.write(chunk, 0, length);
+            }
+            writeObjectBytes(getObjectFile(chunkId), result.toByteArray());
+        }
+        return chunkId;
+    }
+
+    // 写对象文件（文件夹不存在先创建）：和 save 一样先写临时文件再改名，
+    // 写了一半崩溃不会留下 id 对、内容不全的对象文件（objectExists 之后会一直跳过它）
+    private static void writeObjectBytes(File objectFile, byte[] bytes) {
+        File dir = objectFile.getParentFile();
+        if (!dir.exists()) {
+            mkdir(dir);
+        }
+        File tmpFile = null;
+        try {
+            tmpFile = File.createTempFile("tmp_obj_", null, dir);
+            writeContents(tmpFile, bytes);
+            Files.move(tmpFile.toPath(), objectFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | IllegalArgumentException excp) {
+            if (tmpFile != null) {
+                tmpFile.delete();
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // 获取blob对象的id
     public String getId() {
         return id;
     }
 
-    // ȡblobobject file
+    // 获取blob的object file
     public File getFile() {
         return file;
     }
 
     /**
-     * ݴļpathid
+     * 根据传入的文件流式计算id（规则见 newDigest）
      * @param sourceFile File instance
      * @return SHA1 id
      */
     public static String generateId(File sourceFile) {
-        String filePath = sourceFile.getPath();
-        byte[] fileContent = readContents(sourceFile);
-        return sha1(filePath, fileContent);
+        MessageDigest md = newDigest(sourceFile.getPath());
+        try (InputStream in = new FileInputStream(sourceFile)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return ObjectCodec.bytesToId(md.digest());
     }
 
-    // idȡBlob
+    // 根据id得到Blob对象（内容用到时才从对象文件里流式读取）
     public static Blob fromFile(String id) {
-        return readObject(getObjectFile(id), Blob.class);
+        return new Blob(id, null);
+    }
+
+    @Override
+    public byte getType() {
+        return ObjectCodec.TYPE_BLOB;
+    }
+
+    @Override
+    public byte getVersion() {
+        return VERSION;
+    }
+
+    // 负载：文件内容（id 就是对象文件名，不需要再存；路径记录在 commit 的 tracked 里）
+    @Override
+    public void encode(DataOutputStream out) throws IOException {
+        if (content != null) {
+            out.write(content);
+            return;
+        }
+        try (InputStream in = source != null ? new FileInputStream(source) : openContent()) {
+            copy(in, out);
+        }
+    }
+
+    /**
+     * 打开blob的内容：跳过文件头和旧版本负载里内容前面的字段，流停在内容的开头
+     * @return 内容的输入流，用完要关闭
+     */
+    public InputStream openContent() {
+        if (content != null) {
+            return new ByteArrayInputStream(content);
+        }
+        return openContent(ObjectStream.open(id));
+    }
+
+    // 从打开的对象里找到内容的开头
+    private InputStream openContent(ObjectStream in) {
+        try {
+            if (in.getType() != ObjectCodec.TYPE_BLOB) {
+                throw new IOException("Object is not a blob: " + id);
+            }
+            DataInputStream dataIn = new DataInputStream(in);
+            // 版本1的负载前面还有源文件路径，版本1、2的内容前面还有内容长度
+            if (in.getVersion() == 1) {
+                ObjectCodec.readString(dataIn);
+            }
+            if (in.getVersion() < 3) {
+                dataIn.readInt();
+            }
+            if (in.getVersion() == MANIFEST_VERSION) {
+                List<String> chunkIds = readManifest(dataIn);
+                in.close();
+                return openChunks(chunkIds);
+            }
+            return in;
+        } catch (IOException excp) {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+                // 已经在报错了
+            }
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // 读取块的列表
+    private static List<String> readManifest(DataInputStream in) throws IOException {
+        in.readLong();
+        int count = in.readInt();
+        List<String> chunkIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            chunkIds.add(ObjectCodec.readId(in));
+            in.readInt();
+        }
+        return chunkIds;
+    }
+
+    // 按顺序把各个块连起来，读到哪个块才打开哪个
+    private static InputStream openChunks(List<String> chunkIds) {
+        Iterator<String> it = chunkIds.iterator();
+        return new SequenceInputStream(new Enumeration<InputStream>() {
+            @Override
+            public boolean hasMoreElements() {
+                return it.hasNext();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                String chunkId = it.next();
+                ObjectStream chunk = ObjectStream.open(chunkId);
+                if (chunk.getType() != ObjectCodec.TYPE_CHUNK) {
+                    throw new IllegalArgumentException("Object is not a chunk: " + chunkId);
+                }
+                return chunk;
+            }
+        });
+    }
+
+    /**
+     * 切块存储的 blob 的所有块（gc 时要一起打包），没有切块返回空列表
+     * @return 块的 id
+     */
+    public List<String> getChunkIds() {
+        if (content != null || source != null) {
+            return new ArrayList<>();
+        }
+        try (ObjectStream in = ObjectStream.open(id)) {
+            if (in.getVersion() != MANIFEST_VERSION) {
+                return new ArrayList<>();
+            }
+            return readManifest(new DataInputStream(in));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 把blob的内容流式写入目标文件（同一个blob可能对应多个路径）
+     * @param target 目标文件
+     */
+    public void writeContentTo(File target) {
+        writeContentTo(target, null, 0);
     }
 
-    // blobļдblobԴļ
-    public void writeContentToSource() {
-        writeContents(source, content);
+    /**
+     * 同上，复制之前先从 budget 申请对象的长度（最多 limit）个许可，写完归还：
+     * 并行恢复文件时用来限制同时在处理的字节数（pack 里的增量对象要整个还原在内存里）
+     * @param target 目标文件
+     * @param budget 字节数的许可，null 表示不限制
+     * @param limit  budget 的总许可数
+     */
+    public void writeContentTo(File target, Semaphore budget, int limit) {
+        if (target.isDirectory()) {
+            throw new IllegalArgumentException("cannot overwrite directory");
+        }
+        // 子目录里的文件，目录可能已经被删掉了（可能有别的线程同时在创建，所以创建失败后再看一次）
+        File parent = target.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IllegalArgumentException(String.format("mkdir: %s: Failed to create.", parent.getPath()));
+        }
+        ObjectStream object = content == null ? ObjectStream.open(id) : null;
+        int permits = 0;
+        if (budget != null) {
+            permits = Math.max(1, Math.min(object == null ? content.length : object.getLength(), limit));
+            budget.acquireUninterruptibly(permits);
+        }
+        try (InputStream in = object == null ? openContent() : openContent(object);
+             OutputStream out = new BufferedOutputStream(new FileOutputStream(target))) {
+            copy(in, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            if (budget != null) {
+                budget.release(permits);
+            }
+        }
     }
 
     /**
-     * blobӦļݣutf-8룩.
+     * 把blob的内容流式写进输出流（不关闭输出流）
+     * @param out 输出流
+     */
+    public void writeContentTo(OutputStream out) throws IOException {
+        try (InputStream in = openContent()) {
+            copy(in, out);
+        }
+    }
+
+    /**
+     * 内容的长度：只读文件头和内容前面的字段，不读内容
+     * @return 字节数
+     */
+    public long getSize() {
+        if (content != null) {
+            return content.length;
+        }
+        try (ObjectStream in = ObjectStream.open(id)) {
+            DataInputStream dataIn = new DataInputStream(in);
+            switch (in.getVersion()) {
+                case 1:
+                    // 源文件路径 + 内容长度 + 内容
+                    ObjectCodec.readString(dataIn);
+                    return dataIn.readInt();
+                case 2:
+                    return dataIn.readInt();
+                case MANIFEST_VERSION:
+                    return dataIn.readLong();
+                default:
+                    return in.getLength();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // 内容的开头是否像是二进制文件（只读开头的一部分）
+    public boolean isBinary() {
+        byte[] head = new byte[Lines.BINARY_CHECK_LENGTH];
+        int length = 0;
+        try (InputStream in = openContent()) {
+            int n;
+            while (length < head.length && (n = in.read(head, length, head.length - length)) > 0) {
+                length += n;
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return Lines.isBinary(head, length);
+    }
+
+    // 文件内容（整个读进内存，只用于小文件）
+    public byte[] getContent() {
+        if (content != null) {
+            return content;
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        try (InputStream in = openContent()) {
+            copy(in, result);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * 返回blob对应文件的内容（utf-8编码）.
      * @return Blob content
      */
     public String getContentAsString() {
-        return new String(content, StandardCharsets.UTF_8);
+        return new String(getContent(), StandardCharsets.UTF_8);
+    }
+
+    // 按固定大小的缓冲区复制
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
     }
 
 
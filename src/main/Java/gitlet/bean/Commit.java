@@ -1,114 +1,253 @@
 package gitlet.bean;
 
+import gitlet.Repository;
+import gitlet.util.Config;
+import gitlet.util.Encodable;
+import gitlet.util.ObjectCodec;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.Serializable;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
 
 import static gitlet.util.MyUtils.*;
-import static gitlet.util.Utils.readObject;
+import static gitlet.util.Utils.join;
 import static gitlet.util.Utils.sha1;
 
-public class Commit implements Serializable {
-    // ύdata
+public class Commit implements Encodable {
+    // 与旧版本 Java 序列化的类保持一致，旧仓库里的 commit 才能继续读
+    private static final long serialVersionUID = 5273881775756531735L;
+    // 负载格式版本：1 直接记录所有跟踪的文件，2 只记录根目录的 tree（见 Tree）
+    private static final byte VERSION = 2;
+    // 提交的data
     private final Date date;
-    // ύʱϢ
+    // 提交时的信息
     private final String message;
-    // ύ SHA1 ϣб
+    // 父提交的 SHA1 哈希列表
     private final List<String> parents;
-    // SHA1id
+    // SHA1的id
     private final String id;
-    // commitObjectļ· SHA1 ϣ
+    // commit的Object文件，路径由 SHA1 哈希生成
     private final File file;
-    // Commitٵļӳ䣬Ϊļ·ֵΪļ SHA1 ϣ
-    private final Map<String, String> tracked;
+    // Commit跟踪的文件映射，键为文件路径，值为文件的 SHA1 哈希
+    // 旧版本的 commit 直接记录；新的 commit 用到时才从 tree 展开
+    private Map<String, String> tracked;
+    // 根目录的 tree id（旧版本的 commit 为 null）
+    private final String treeId;
 
-    // ύ
-    public Commit(String message, List<String> parents, Map<String, String> trackedFilesMap) {
+    // 创建提交：在 base 的快照上应用暂存区的变化，只重写有变化的目录
+    public Commit(String message, List<String> parents, Commit base, Map<String, String> added, Set<String> removed) {
         date = new Date();
         this.message = message;
         this.parents = parents;
+        Map<String, String> changes = new HashMap<>();
+        for (Map.Entry<String, String> entry : added.entrySet()) {
+            changes.put(Repository.getRelativePath(entry.getKey()), entry.getValue());
+        }
+        for (String filePath : removed) {
+            changes.put(Repository.getRelativePath(filePath), null);
+        }
+        if (base.treeId != null) {
+            treeId = Tree.update(base.treeId, changes);
+        } else {
+            // 旧版本的 commit 没有 tree，先展开再整个写一遍
+            Map<String, String> trackedFiles = toRelativePaths(base.getTracked());
+            trackedFiles.putAll(changes);
+            trackedFiles.values().removeIf(Objects::isNull);
+            treeId = Tree.write(trackedFiles);
+        }
+        id = generateId();
+        file = getObjectFile(id);
+    }
+
+    // 用指定的日期和完整的文件映射创建提交（迁移旧仓库、重写历史时保留原来的日期）
+    public Commit(String message, List<String> parents, Map<String, String> trackedFilesMap, Date date) {
+        this.date = date;
+        this.message = message;
+        this.parents = parents;
         this.tracked = trackedFilesMap;
+        treeId = Tree.write(toRelativePaths(trackedFilesMap));
         id = generateId();
         file = getObjectFile(id);
     }
 
-    // ʼύʼڣmessageϢ
+    // 初始化提交，初始化日期，message等信息
     public Commit() {
         date = new Date(0);
         message = "initial commit";
         parents = new ArrayList<>();
         tracked = new HashMap<>();
-        // Ϣid
+        treeId = Tree.write(tracked);
+        // 根据信息生成id
         id = generateId();
-        // idobjectĿ¼¶Ӧcommitû̻
+        // 根据id生成在object目录下对应的commit对象（没报错到磁盘还）
+        file = getObjectFile(id);
+    }
+
+    // 解码时使用：直接用读出来的字段创建，不重新计算 id
+    private Commit(String id, Date date, String message, List<String> parents, Map<String, String> tracked,
+                   String treeId) {
+        this.id = id;
+        this.date = date;
+        this.message = message;
+        this.parents = parents;
+        this.tracked = tracked;
+        this.treeId = treeId;
         file = getObjectFile(id);
     }
 
     /**
-     *  SHA1 ϣʱϢύб͸ļӳ
+     * 生成 SHA1 哈希，包含时间戳、消息、父提交列表和根目录的 tree id
      * @return SHA1 id
      */
     private String generateId() {
-        return sha1(getTimestamp(), message, parents.toString(), tracked.toString());
+        return sha1(getTimestamp(), message, parents.toString(), treeId);
+    }
+
+    // 绝对路径 => 相对路径
+    private static Map<String, String> toRelativePaths(Map<String, String> trackedFilesMap) {
+        Map<String, String> result = new HashMap<>();
+        for (Map.Entry<String, String> entry : trackedFilesMap.entrySet()) {
+            result.put(Repository.getRelativePath(entry.getKey()), entry.getValue());
+        }
+        return result;
     }
 
     /**
-     *  SHA1 ϣȡ Commit ʵ
+     * 从 SHA1 哈希获取 Commit 实例
      * @param id SHA1 id
      * @return Commit instance
      */
     public static Commit fromFile(String id) {
-        return readObject(getObjectFile(id), Commit.class);
+        return loadObject(id, ObjectCodec.TYPE_COMMIT, Commit.class,
+                (in, version) -> decode(id, in, version));
+    }
+
+    @Override
+    public byte getType() {
+        return ObjectCodec.TYPE_COMMIT;
+    }
+
+    @Override
+    public byte getVersion() {
+        return treeId == null ? 1 : VERSION;
     }
 
-    //  Commit ʵ浽ļ
+    // 负载：日期毫秒数 + message + parents（20字节原始 id）+ 根目录的 tree id（20字节）
+    // 版本1最后是跟踪的文件（路径 + 20字节 blob id），旧版本的 commit 重新编码时（gc）还是用版本1
+    @Override
+    public void encode(DataOutputStream out) throws IOException {
+        out.writeLong(date.getTime());
+        ObjectCodec.writeString(out, message);
+        out.writeInt(parents.size());
+        for (String parent : parents) {
+            ObjectCodec.writeId(out, parent);
+        }
+        if (treeId != null) {
+            ObjectCodec.writeId(out, treeId);
+            return;
+        }
+        out.writeInt(tracked.size());
+        for (Map.Entry<String, String> entry : tracked.entrySet()) {
+            ObjectCodec.writeString(out, entry.getKey());
+            ObjectCodec.writeId(out, entry.getValue());
+        }
+    }
+
+    private static Commit decode(String id, DataInputStream in, byte version) throws IOException {
+        Date date = new Date(in.readLong());
+        String message = ObjectCodec.readString(in);
+        int parentsSize = in.readInt();
+        List<String> parents = new ArrayList<>(parentsSize);
+        for (int i = 0; i < parentsSize; i++) {
+            parents.add(ObjectCodec.readId(in));
+        }
+        if (version >= 2) {
+            return new Commit(id, date, message, parents, null, ObjectCodec.readId(in));
+        }
+        int trackedSize = in.readInt();
+        Map<String, String> tracked = new HashMap<>();
+        for (int i = 0; i < trackedSize; i++) {
+            String filePath = ObjectCodec.readString(in);
+            tracked.put(filePath, ObjectCodec.readId(in));
+        }
+        return new Commit(id, date, message, parents, tracked, null);
+    }
+
+    // 将此 Commit 实例保存到对象文件夹中
     public void save() {
         saveObjectFile(file, this);
     }
 
-    // Commit
+    // 返回Commit创建日期
     public Date getDate() {
         return date;
     }
 
-    // ظʽʱ Thu Jan 1 00:00:00 1970 +0000
+    // 返回格式化时间 （Thu Jan 1 00:00:00 1970 +0000）
     public String getTimestamp() {
         DateFormat dateFormat = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z", Locale.ENGLISH);
         return dateFormat.format(date);
     }
 
-    // ȡύϢ
+    // 获取提交信息
     public String getMessage() {
         return message;
     }
 
-    // ظύб
+    // 返回父提交列表
     public List<String> getParents() {
         return parents;
     }
 
-    // Commitٵļӳ
+    // 返回Commit跟踪的文件映射（要读出所有的 tree，只查几个文件时用 getBlobId）
     public Map<String, String> getTracked() {
+        if (tracked == null) {
+            tracked = new HashMap<>();
+            for (Map.Entry<String, String> entry : Tree.flatten(treeId).entrySet()) {
+                tracked.put(join(Repository.CWD, entry.getKey()).getPath(), entry.getValue());
+            }
+        }
         return tracked;
     }
 
-    // ضӦsha1 ID
+    /**
+     * 查找一个跟踪的文件，只读取路径上的 tree
+     * @param filePath 文件路径
+     * @return blob id，没有跟踪返回 null
+     */
+    public String getBlobId(String filePath) {
+        if (tracked != null) {
+            return tracked.get(filePath);
+        }
+        return Tree.lookup(treeId, Repository.getRelativePath(filePath));
+    }
+
+    // 根目录的 tree id（旧版本的 commit 为 null）
+    public String getTreeId() {
+        return treeId;
+    }
+
+    // 返回对应的sha1 ID
     public String getId() {
         return id;
     }
 
     /**
-     *  commit ־ָǰcommitiddatecommitmessage
-     * mergeύҪӡparentsϢmergeòŴӡparentΪһparentϢˣ
+     * 返回 commit 日志，包括：分隔符，当前commit的id，创建的date，commit的message
+     * 如果是merge提交，还要额外打印parents信息（不是merge用不着打印parent，因为下一条就是parent的信息了）
      * @return Log content
      */
     public String getLog() {
         StringBuilder logBuilder = new StringBuilder();
         logBuilder.append("===").append("\n");
         logBuilder.append("commit").append(" ").append(id).append("\n");
-        // ںϲύʾиύĹϣ
+        // 对于合并提交，显示所有父提交的哈希
         if (parents.size() > 1) {
             logBuilder.append("Merge:");
             for (String parent : parents) {
@@ -122,28 +261,47 @@ public class Commit implements Serializable {
     }
 
     /**
-     * ļ·ָٵļ
+     * 根据文件路径恢复跟踪的文件，
      * @param filePath Path of the file
      * @return true if file exists in commit
      */
     @SuppressWarnings("BooleanMethodIsAlwaysInverted")
     public boolean restoreTracked(String filePath) {
-        // commitûм¼ͷfalse
-        String blobId = tracked.get(filePath);
+        // commit中没有记录就返回false
+        String blobId = getBlobId(filePath);
         if (blobId == null) {
             return false;
         }
-        //IdõBlob󲢻ָ
-        Blob.fromFile(blobId).writeContentToSource();
+        //根据Id拿到Blob对象并恢复
+        Blob.fromFile(blobId).writeContentTo(new File(filePath));
         return true;
     }
 
     /**
-     * ָиٵļļ
+     * 恢复指定的跟踪的文件，覆盖现有文件
+     * @param filePaths 要恢复的文件路径（都是这个commit跟踪的）
      */
-    public void restoreAllTracked() {
-        for (String blobId : tracked.values()) {
-            Blob.fromFile(blobId).writeContentToSource();
+    public void restoreTracked(Collection<String> filePaths) {
+        Map<String, String> tracked = getTracked();
+        // 各个文件互不相关，在线程池里并行读对象、写文件，同时在处理的字节数不超过 limit
+        int limit = Math.max(1, Config.getInt(Config.CORE_RESTORE_MEMORY_LIMIT, 64 << 20));
+        Semaphore budget = new Semaphore(limit);
+        // 某个文件失败了不影响其他文件，最后一起报告
+        Map<String, String> failures = new ConcurrentSkipListMap<>();
+        parallelForEach(filePaths, filePath -> {
+            try {
+                Blob.fromFile(tracked.get(filePath)).writeContentTo(new File(filePath), budget, limit);
+            } catch (IllegalArgumentException excp) {
+                failures.put(filePath, String.valueOf(excp.getMessage()));
+            }
+        });
+        if (!failures.isEmpty()) {
+            StringBuilder messageBuilder = new StringBuilder("Failed to restore ")
+                    .append(failures.size()).append(" file(s):");
+            for (Map.Entry<String, String> failure : failures.entrySet()) {
+                messageBuilder.append("\n").append(failure.getKey()).append(": ").append(failure.getValue());
+            }
+            throw new IllegalArgumentException(messageBuilder.toString());
         }
     }
 
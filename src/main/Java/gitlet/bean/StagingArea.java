@@ -1,85 +1,274 @@
 package gitlet.bean;
 
 import gitlet.Repository;
+import gitlet.util.Encodable;
+import gitlet.util.ObjectCodec;
+import gitlet.util.WriteTransaction;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.Serializable;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
-import static gitlet.util.Utils.readObject;
-import static gitlet.util.Utils.writeObject;
+import static gitlet.util.MyUtils.objectExists;
+import static gitlet.util.MyUtils.readObjectFile;
 
-public class StagingArea implements Serializable {
-    // ļļ·ֵļ SHA1 ϣ
+public class StagingArea implements Encodable {
+    // 与旧版本 Java 序列化的类保持一致，旧仓库里的 index 才能继续读
+    private static final long serialVersionUID = 4320877275670866080L;
+    // 负载格式版本：2 在后面加了工作区文件的状态缓存，3 又加了文件系统监视器的 token
+    private static final byte VERSION = 3;
+    // 添加文件区，键是文件路径，值是文件的 SHA1 哈希
     private final Map<String, String> added = new HashMap<>();
-    // ɾļ洢ļ·
+    // 已删除文件区，存储文件路径
     private final Set<String> removed = new HashSet<>();
-    // commitļǰ״keypathvaluesha1_Id
-    private transient Map<String, String> tracked;
+    // 当前的 HEAD commit，文件有没有被跟踪从它查（只读取路径上的 tree）
+    private transient Commit head;
+    // 工作区文件的状态缓存：路径 => 上次计算 blob id 时文件的状态和 id（用 encode 持久化，不参与 Java 序列化）
+    // 扫描工作区时会被多个线程同时更新
+    private transient Map<String, StatEntry> statCache;
+    // 状态缓存有没有变化，有变化才需要保存
+    private transient volatile boolean statCacheDirty;
+    // 文件系统监视器的 token（见 FsMonitor），状态缓存和它对应的日志位置是同步的
+    private transient String fsmonitorToken = "";
+    // 读取时 index 文件的修改时间（纳秒）
+    private transient long indexModifiedTime;
 
     /**
-     * ̬ INDEX ļȡ StagingArea ʵ
-     * @return StagingArea 
+     * 静态方法：从 INDEX 文件获取 StagingArea 实例
+     * @return StagingArea 对象
      */
     public static StagingArea fromFile() {
-        return readObject(Repository.INDEX, StagingArea.class);
+        StagingArea stagingArea = readObjectFile(Repository.INDEX, ObjectCodec.TYPE_INDEX, StagingArea.class,
+                (in, version) -> decode(in, version));
+        try {
+            stagingArea.indexModifiedTime = Files.getLastModifiedTime(Repository.INDEX.toPath())
+                    .to(TimeUnit.NANOSECONDS);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return stagingArea;
+    }
+
+    @Override
+    public byte getType() {
+        return ObjectCodec.TYPE_INDEX;
+    }
+
+    @Override
+    public byte getVersion() {
+        return VERSION;
+    }
+
+    // 负载：added（路径 + 20字节 blob id） + removed（路径）
+    //     + 状态缓存（路径 + 大小 + 修改时间 + inode + 20字节 blob id） + 文件系统监视器的 token
+    @Override
+    public void encode(DataOutputStream out) throws IOException {
+        out.writeInt(added.size());
+        for (Map.Entry<String, String> entry : added.entrySet()) {
+            ObjectCodec.writeString(out, entry.getKey());
+            ObjectCodec.writeId(out, entry.getValue());
+        }
+        out.writeInt(removed.size());
+        for (String filePath : removed) {
+            ObjectCodec.writeString(out, filePath);
+        }
+        out.writeInt(getStatCache().size());
+        for (Map.Entry<String, StatEntry> entry : getStatCache().entrySet()) {
+            StatEntry stat = entry.getValue();
+            ObjectCodec.writeString(out, entry.getKey());
+            out.writeLong(stat.size);
+            out.writeLong(stat.modifiedTime);
+            ObjectCodec.writeString(out, stat.fileKey);
+            ObjectCodec.writeId(out, stat.blobId);
+        }
+        ObjectCodec.writeString(out, getFsmonitorToken());
+    }
+
+    private static StagingArea decode(DataInputStream in, byte version) throws IOException {
+        StagingArea stagingArea = new StagingArea();
+        int addedSize = in.readInt();
+        for (int i = 0; i < addedSize; i++) {
+            String filePath = ObjectCodec.readString(in);
+            stagingArea.added.put(filePath, ObjectCodec.readId(in));
+        }
+        int removedSize = in.readInt();
+        for (int i = 0; i < removedSize; i++) {
+            stagingArea.removed.add(ObjectCodec.readString(in));
+        }
+        if (version >= 2) {
+            int cacheSize = in.readInt();
+            for (int i = 0; i < cacheSize; i++) {
+                String filePath = ObjectCodec.readString(in);
+                long size = in.readLong();
+                long modifiedTime = in.readLong();
+                String fileKey = ObjectCodec.readString(in);
+                String blobId = ObjectCodec.readId(in);
+                stagingArea.getStatCache().put(filePath, new StatEntry(size, modifiedTime, fileKey, blobId));
+            }
+        }
+        if (version >= 3) {
+            stagingArea.fsmonitorToken = ObjectCodec.readString(in);
+        }
+        return stagingArea;
     }
 
-    // øٵļӳ
-    public void setTracked(Map<String, String> filesMap) {
-        tracked = filesMap;
+    // 设置当前的 HEAD commit
+    public void setHead(Commit commit) {
+        head = commit;
     }
 
     /**
-     * ļӵݴⲿҪۣ
-     * 1û|ļȻύ° blobļȻputaddedɣtrue
-     * 2֮ǰaddһһģһģfalse
-     * 3û֮ǰ a.txt (eg:123)ˣȻ޸ĳ(123456)addݴûcommit
-     * ָĻ(123),ǾûҪblobֱӰݴм汾ɾ˾ͺˡȻ󷵻ture
-     * 4û֮ǰ a.txt ˣȻ rm ɾˣûִˣaddʱҪԭɾ¼ɾ˷ֹɾtrue
-     * @param file Ҫӵļ
-     * @return true Ƿӳɹ
+     * 将文件添加到暂存区：这部分要分情况讨论：
+     * （1）用户创建|更改了文件，然后提交了最新版 ，创建blob文件，然后put到added区即可，返回true
+     * （2）之前add过一次一模一样的，返回false
+     * （3）用户之前把 a.txt 内容(eg:123)交了，然后修改成了(123456)后add到了暂存区但没有commit
+     * 现在又改回了(123),那就没必要做多个blob，直接把暂存区的中间版本删除了就好了。然后返回ture
+     * （4）用户之前把 a.txt 交了，然后后来 rm 删除了，现在用户又创建回来了，所以add的时候要把原来的删除记录删了防止误删，返回true
+     * @param file 要添加的文件
+     * @return true 是否添加成功
      */
     public boolean add(File file) {
         String filePath = file.getPath();
-        // ļ blob 
-        Blob blob = new Blob(file);
+        // 创建文件 blob 对象（文件没变过就不用重新计算 id）
+        Blob blob = new Blob(file, getBlobId(file));
         String blobId = blob.getId();
-        // ļǷ񱻸٣commit
-        String trackedBlobId = tracked.get(filePath);
+        // 文件是否被跟踪（commit过）
+        String trackedBlobId = head.getBlobId(filePath);
         if (trackedBlobId != null) {
-            // ڽļ֮ǰcommitļȫһ£ûҪύˣӦðݴر仯ɾ
+            // 现在交的文件和之前commit的文件完全一致，没必要提交了，且应该把暂存区相关变化删除
             if (trackedBlobId.equals(blobId)) {
-                // ɾ add ı仯
+                // 删除 add 的变化
                 if (added.remove(filePath) != null) {
                     return true;
                 }
-                // ɾ remove 
+                // 删除 remove 区
                 return removed.remove(filePath);
             }
         }
-        // ûcommit֮ǰaddһģһ
+        // 没有commit过，但之前就add过一模一样的
         String prevBlobId = added.put(filePath, blobId);
         if (prevBlobId != null && prevBlobId.equals(blobId)) {
             return false;
         }
-        // blobļ
-        if (!blob.getFile().exists()) {
+        // 保存blob文件
+        if (!objectExists(blobId)) {
             blob.save();
         }
         return true;
     }
 
-    // ݴݳ־ûindexļ
+    // 暂存区内容持久化到index文件（原子替换：status 这样只读的命令也会更新状态缓存，中途被打断不能留下写了一半的 index）
     public void save() {
-        writeObject(Repository.INDEX, this);
+        WriteTransaction.replace(Repository.INDEX, ObjectCodec.encode(this));
+        statCacheDirty = false;
+    }
+
+    // 在写事务提交时原子地替换 index
+    public void save(WriteTransaction transaction) {
+        transaction.publish(Repository.INDEX, ObjectCodec.encode(this));
+        statCacheDirty = false;
+    }
+
+    // 状态缓存有变化才保存
+    public void saveIfStatCacheDirty() {
+        if (statCacheDirty) {
+            save();
+        }
+    }
+
+    private synchronized Map<String, StatEntry> getStatCache() {
+        if (statCache == null) {
+            statCache = new ConcurrentHashMap<>();
+        }
+        return statCache;
     }
 
     /**
-     * жݴǷݣaddedremovedΪ˵ûļӡ޸ġɾ
+     * 计算工作区文件的 blob id：大小、修改时间、inode 都和缓存一致就直接用缓存的 id，否则重新计算并更新缓存
+     * 修改时间不早于 index 的修改时间的缓存项不可信（写 index 的同一时刻文件可能又被改了，而修改时间看不出来），
+     * 这种文件每次都重新计算，直到下一次保存 index 之后；可以在多个线程里同时调用
+     * @param file 工作区文件
+     * @return blob id
+     */
+    public String getBlobId(File file) {
+        String filePath = file.getPath();
+        StatEntry before = StatEntry.of(file, null);
+        StatEntry cached = getStatCache().get(filePath);
+        if (cached != null && cached.sameStat(before) && cached.modifiedTime < indexModifiedTime) {
+            return cached.blobId;
+        }
+        String blobId = Blob.generateId(file);
+        // 计算的过程中文件被改了就不缓存
+        StatEntry after = StatEntry.of(file, blobId);
+        if (after.sameStat(before)) {
+            getStatCache().put(filePath, after);
+        } else {
+            getStatCache().remove(filePath);
+        }
+        statCacheDirty = true;
+        return blobId;
+    }
+
+    /**
+     * 扫描完整个工作区之后，去掉已经不存在的文件的缓存
+     * @param filePaths 工作区所有文件的路径
+     */
+    public void retainStatCache(Set<String> filePaths) {
+        if (getStatCache().keySet().retainAll(filePaths)) {
+            statCacheDirty = true;
+        }
+    }
+
+    // 所有缓存的 blob id（文件系统监视器报告没有变化的文件直接用它）
+    public Map<String, String> getCachedBlobIds() {
+        Map<String, String> result = new HashMap<>();
+        for (Map.Entry<String, StatEntry> entry : getStatCache().entrySet()) {
+            result.put(entry.getKey(), entry.getValue().blobId);
+        }
+        return result;
+    }
+
+    // 文件有没有缓存（计算 id 时文件正在被改，就不会有）
+    public boolean isStatCached(String filePath) {
+        return getStatCache().containsKey(filePath);
+    }
+
+    // 去掉一个文件的缓存（文件已经不存在了），是目录的话去掉它下面所有文件的缓存
+    public void removeStatCache(String filePath) {
+        String dirPrefix = filePath + File.separator;
+        if (getStatCache().keySet().removeIf(path -> path.equals(filePath) || path.startsWith(dirPrefix))) {
+            statCacheDirty = true;
+        }
+    }
+
+    // 文件系统监视器的 token（旧的 index 反序列化出来是 null）
+    public String getFsmonitorToken() {
+        return fsmonitorToken == null ? "" : fsmonitorToken;
+    }
+
+    // 更新文件系统监视器的 token，变了才需要保存
+    public void setFsmonitorToken(String token) {
+        if (!token.equals(getFsmonitorToken())) {
+            fsmonitorToken = token;
+            statCacheDirty = true;
+        }
+    }
+
+    // 清空状态缓存（blob id 的计算规则变了之后）
+    public void clearStatCache() {
+        getStatCache().clear();
+        fsmonitorToken = "";
+        statCacheDirty = true;
+    }
+
+    /**
+     * 判断暂存区是否有内容（added和removed都为空说明没有文件添加、修改、删除）
      * @return true if is clean
      */
     public boolean isClean() {
@@ -87,41 +276,37 @@ public class StagingArea implements Serializable {
     }
 
     /**
-     * ִύ¸ٵļݴύĸļӳ
-     * @return Map with file path as key and SHA1 id as value.
+     * 执行提交：在 HEAD 的快照上应用暂存区的变化（只重写有变化的目录），然后清理暂存区
+     * @param message commit message
+     * @param parents 父提交
+     * @return 新的 commit（还没有保存）
      */
-    public Map<String, String> commit() {
-        // trackedάcommitļĵǰ״עtrackedcommitļ״addedremove¼Ǳ仯
-        // putAll tracked
-        tracked.putAll(added);
-        // removetracked
-        for (String filePath : removed) {
-            tracked.remove(filePath);
-        }
-        // ݴ
+    public Commit commit(String message, List<String> parents) {
+        Commit commit = new Commit(message, parents, head, added, removed);
+        // 清除暂存区
         clear();
-        // صǰĿոcommit
-        return tracked;
+        head = commit;
+        return commit;
     }
 
-    // ݴ
+    // 清空暂存区
     public void clear() {
         added.clear();
         removed.clear();
     }
 
     /**
-     * ݴƳļһaddƳȻcommitӻȥȻѱļҲɾˣ߼ѡʵ
-     * ·removecommitʱŻ޸ģעֻcommittrackedtrackedύİ汾գ
+     * 从暂存区中移除文件，一个是add中移除，不然后面commit会个加回去，然后把本地文件也删除了（这个逻辑可选其实），
+     * 最后把路径放入remove，后面commit的时候才会修改（注意只有commit操作会更改tracked，tracked就是提交的版本快照）
      * @param file File instance
      * @return true if the staging area is changed
      */
     public boolean remove(File file) {
         String filePath = file.getPath();
-        // ļб仯Ƴ仯
+        // 该文件有变化，移除变化
         String addedBlobId = added.remove(filePath);
-        // ļûб仯ҹиļƳ٣ӵremove
-        if (tracked.get(filePath) != null) {
+        // 该文件没有变化，且工作区有该文件，移除跟踪，并添加到remove
+        if (head.getBlobId(filePath) != null) {
             if (file.exists()) {
                 rm(file);
             }
@@ -130,7 +315,7 @@ public class StagingArea implements Serializable {
         return false;
     }
 
-    // ɾfile
+    // 删除file
     public static void rm(File file) {
         if (!file.delete()) {
             throw new IllegalArgumentException(String.format("rm: %s: Failed to delete.", file.getPath()));
@@ -138,7 +323,7 @@ public class StagingArea implements Serializable {
     }
 
     /**
-     * ȡӵļӳ
+     * 获取已添加的文件映射
      *
      * @return Map with file path as key and SHA1 id as value.
      */
@@ -147,7 +332,7 @@ public class StagingArea implements Serializable {
     }
 
     /**
-     * ȡɾļ
+     * 获取已删除的文件集合
      *
      * @return Set of files paths.
      */
@@ -155,5 +340,38 @@ public class StagingArea implements Serializable {
         return removed;
     }
 
+    /**
+     * 文件的状态：大小、修改时间（纳秒）、inode（文件系统不支持时为空串）和当时计算出的 blob id
+     */
+    private static class StatEntry {
+        private final long size;
+        private final long modifiedTime;
+        private final String fileKey;
+        private final String blobId;
+
+        StatEntry(long size, long modifiedTime, String fileKey, String blobId) {
+            this.size = size;
+            this.modifiedTime = modifiedTime;
+            this.fileKey = fileKey;
+            this.blobId = blobId;
+        }
+
+        // 读取文件现在的状态
+        static StatEntry of(File file, String blobId) {
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+                Object fileKey = attributes.fileKey();
+                return new StatEntry(attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                        fileKey == null ? "" : fileKey.toString(), blobId);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+
+        boolean sameStat(StatEntry other) {
+            return size == other.size && modifiedTime == other.modifiedTime && fileKey.equals(other.fileKey);
+        }
+    }
+
 
 }
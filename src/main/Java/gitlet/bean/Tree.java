@@ -0,0 +1,228 @@
+package gitlet.bean;
+
+import gitlet.util.Encodable;
+import gitlet.util.ObjectCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+import static gitlet.util.MyUtils.*;
+import static gitlet.util.Utils.sha1;
+
+/**
+ * 一个目录的快照：目录下的文件（名字 => blob id）和子目录（名字 => tree id）
+ * 只记录名字，不记录完整路径，所以没有变化的子目录在不同的 commit 之间是同一个 tree
+ * commit 只记录根目录的 tree，提交时只需要重写有变化的文件所在的那些目录（见 update）
+ * 路径统一用 '/' 分隔，相对于工作区根目录
+ */
+public class Tree implements Encodable {
+    private static final long serialVersionUID = 1L;
+    // 负载格式版本
+    private static final byte VERSION = 1;
+    // tree id 的前缀，和 blob、commit 的 id 区分开
+    private static final String ID_PREFIX = "tree";
+
+    // 文件：名字 => blob id（按名字排序，编码结果才是确定的）
+    private final TreeMap<String, String> files;
+    // 子目录：名字 => tree id
+    private final TreeMap<String, String> dirs;
+    private final String id;
+
+    private Tree(TreeMap<String, String> files, TreeMap<String, String> dirs) {
+        this.files = files;
+        this.dirs = dirs;
+        id = sha1(ID_PREFIX, payload());
+    }
+
+    private Tree(String id, TreeMap<String, String> files, TreeMap<String, String> dirs) {
+        this.id = id;
+        this.files = files;
+        this.dirs = dirs;
+    }
+
+    // 根据 id 读取 tree
+    public static Tree fromFile(String id) {
+        return loadObject(id, ObjectCodec.TYPE_TREE, Tree.class, (in, version) -> decode(id, in));
+    }
+
+    @Override
+    public byte getType() {
+        return ObjectCodec.TYPE_TREE;
+    }
+
+    @Override
+    public byte getVersion() {
+        return VERSION;
+    }
+
+    // 负载：文件（名字 + 20字节 blob id） + 子目录（名字 + 20字节 tree id）
+    @Override
+    public void encode(DataOutputStream out) throws IOException {
+        out.write(payload());
+    }
+
+    private byte[] payload() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            writeEntries(out, files);
+            writeEntries(out, dirs);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeEntries(DataOutputStream out, Map<String, String> entries) throws IOException {
+        out.writeInt(entries.size());
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            ObjectCodec.writeString(out, entry.getKey());
+            ObjectCodec.writeId(out, entry.getValue());
+        }
+    }
+
+    private static TreeMap<String, String> readEntries(DataInputStream in) throws IOException {
+        TreeMap<String, String> entries = new TreeMap<>();
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            String name = ObjectCodec.readString(in);
+            entries.put(name, ObjectCodec.readId(in));
+        }
+        return entries;
+    }
+
+    private static Tree decode(String id, DataInputStream in) throws IOException {
+        TreeMap<String, String> files = readEntries(in);
+        TreeMap<String, String> dirs = readEntries(in);
+        return new Tree(id, files, dirs);
+    }
+
+    // 保存（同样内容的 tree 已经存在就不用再写）
+    private void save() {
+        if (!objectExists(id)) {
+            saveObjectFile(getObjectFile(id), this);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    // 文件：名字 => blob id
+    public Map<String, String> getFiles() {
+        return files;
+    }
+
+    // 子目录：名字 => tree id
+    public Map<String, String> getDirs() {
+        return dirs;
+    }
+
+    /**
+     * 根据完整的文件映射写出所有的 tree
+     * @param trackedFiles 相对路径 => blob id
+     * @return 根目录的 tree id
+     */
+    public static String write(Map<String, String> trackedFiles) {
+        Map<String, String> changes = new HashMap<>(trackedFiles);
+        return update(null, changes);
+    }
+
+    /**
+     * 在已有的 tree 上应用变化，只重写有变化的目录，没有变化的子目录直接沿用原来的 id
+     * @param treeId  原来的 tree id，为 null 表示空目录
+     * @param changes 相对路径 => 新的 blob id（为 null 表示删除）
+     * @return 新的 tree id（目录变空了也会写出一个空的 tree）
+     */
+    public static String update(String treeId, Map<String, String> changes) {
+        Tree tree = updateTree(treeId, changes);
+        return tree == null ? writeEmpty() : tree.getId();
+    }
+
+    // 空目录的 tree
+    private static String writeEmpty() {
+        Tree empty = new Tree(new TreeMap<>(), new TreeMap<>());
+        empty.save();
+        return empty.getId();
+    }
+
+    // 递归应用变化，目录变空了返回 null
+    private static Tree updateTree(String treeId, Map<String, String> changes) {
+        Tree base = treeId == null ? null : fromFile(treeId);
+        TreeMap<String, String> files = base == null ? new TreeMap<>() : new TreeMap<>(base.files);
+        TreeMap<String, String> dirs = base == null ? new TreeMap<>() : new TreeMap<>(base.dirs);
+        // 按第一级目录分组，交给子目录处理
+        Map<String, Map<String, String>> subChanges = new HashMap<>();
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            String path = change.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (change.getValue() == null) {
+                    files.remove(path);
+                } else {
+                    files.put(path, change.getValue());
+                }
+            } else {
+                subChanges.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), change.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> entry : subChanges.entrySet()) {
+            Tree subTree = updateTree(dirs.get(entry.getKey()), entry.getValue());
+            if (subTree == null) {
+                dirs.remove(entry.getKey());
+            } else {
+                dirs.put(entry.getKey(), subTree.getId());
+            }
+        }
+        if (files.isEmpty() && dirs.isEmpty()) {
+            return null;
+        }
+        Tree tree = new Tree(files, dirs);
+        if (base == null || !tree.getId().equals(base.getId())) {
+            tree.save();
+        }
+        return tree;
+    }
+
+    /**
+     * 查找一个文件，只读取路径上的那些 tree
+     * @param treeId 根目录的 tree id
+     * @param path   相对路径
+     * @return blob id，没有这个文件返回 null
+     */
+    public static String lookup(String treeId, String path) {
+        Tree tree = fromFile(treeId);
+        String[] names = path.split("/");
+        for (int i = 0; i < names.length - 1; i++) {
+            String subTreeId = tree.dirs.get(names[i]);
+            if (subTreeId == null) {
+                return null;
+            }
+            tree = fromFile(subTreeId);
+        }
+        return tree.files.get(names[names.length - 1]);
+    }
+
+    /**
+     * 展开成完整的文件映射
+     * @param treeId 根目录的 tree id
+     * @return 相对路径 => blob id
+     */
+    public static Map<String, String> flatten(String treeId) {
+        Map<String, String> result = new HashMap<>();
+        flatten(fromFile(treeId), "", result);
+        return result;
+    }
+
+    private static void flatten(Tree tree, String prefix, Map<String, String> result) {
+        for (Map.Entry<String, String> entry : tree.files.entrySet()) {
+            result.put(prefix + entry.getKey(), entry.getValue());
+        }
+        for (Map.Entry<String, String> entry : tree.dirs.entrySet()) {
+            flatten(fromFile(entry.getValue()), prefix + entry.getKey() + "/", result);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package gitlet.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * 按内容切块（content-defined chunking）：用 Gear 滚动 hash 扫描数据，hash 的高位全为 0 的地方就是切点
+ * 切点只由附近的内容决定，文件中间插入或删除一段只会影响附近的几个块，其他块的 id 不变，可以去重
+ * 块的长度在 MIN_SIZE 和 MAX_SIZE 之间，平均大约 MIN_SIZE + 2^MASK_BITS
+ * （Gear hash 每个字节左移一位，低位只由最后几个字节决定，高位才由最后 64 个字节决定，所以看高位）
+ */
+public class Chunker {
+
+    // 块的最小长度，不足这个长度的不切（也跳过这段的 hash 计算）
+    public static final int MIN_SIZE = 128 << 10;
+    // 块的最大长度，到了就强制切
+    public static final int MAX_SIZE = 2 << 20;
+    // hash 的高 MASK_BITS 位全为 0 时切
+    private static final int MASK_BITS = 19;
+    private static final long MASK = -1L << (Long.SIZE - MASK_BITS);
+    // 每个字节值对应的随机数（种子固定，同样的内容在任何时候切出来的块都一样）
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6769746C6574L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final InputStream in;
+    // 读进来还没有切出去的数据
+    private final byte[] window = new byte[MAX_SIZE];
+    private int windowLength;
+    private boolean eof;
+
+    public Chunker(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * 切出下一块
+     * @param chunk 至少 MAX_SIZE 长的缓冲区，块的内容写在开头
+     * @return 块的长度，数据读完了返回 -1
+     */
+    public int next(byte[] chunk) throws IOException {
+        fill();
+        if (windowLength == 0) {
+            return -1;
+        }
+        int length = findCut();
+        System.arraycopy(window, 0, chunk, 0, length);
+        System.arraycopy(window, length, window, 0, windowLength - length);
+        windowLength -= length;
+        return length;
+    }
+
+    // 把窗口读满（或者读到结尾）
+    private void fill() throws IOException {
+        while (!eof && windowLength < window.length) {
+            int n = in.read(window, windowLength, window.length - windowLength);
+            if (n < 0) {
+                eof = true;
+            } else {
+                windowLength += n;
+            }
+        }
+    }
+
+    // 在窗口里找切点
+    private int findCut() {
+        if (windowLength <= MIN_SIZE) {
+            return windowLength;
+        }
+        long hash = 0;
+        for (int i = MIN_SIZE; i < windowLength; i++) {
+            hash = (hash << 1) + GEAR[window[i] & 0xFF];
+            if ((hash & MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return windowLength;
+    }
+}
@@ -0,0 +1,417 @@
+package gitlet.util;
+
+import gitlet.Repository;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.util.Utils.join;
+
+/**
+ * commit-graph 文件：遍历历史只需要 commit 的 parent 和日期，不用读出（解压、解码）整个 commit 对象
+ * 'C' 'G' 'P' 'H' + 版本号(4字节) + 排好序的项数(4字节) + 保留(4字节) + 若干项
+ * 每个 commit 一项，定长 40 字节：id(20字节) + 第一个 parent 的位置(4字节) + 第二个 parent 的位置(4字节)
+ *       + 提交时间的毫秒数(8字节) + generation(4字节)
+ * parent 的位置是它在文件里是第几项，没有为 -1；generation 是到初始 commit 的最长距离 + 1，
+ * 所以 parent 的 generation 一定比 child 小
+ * 前面 sortedCount 项按 id 排好序（二分查找），后面是 commit、merge 时追加的项（顺序查找），
+ * 追加的项太多了就整个重写一遍。项数由文件长度得出，写了一半的项直接忽略，下次追加时截掉
+ * 文件用 FileChannel.map 映射到内存，每个进程只映射一次
+ */
+public class CommitGraph {
+
+    public static final File GRAPH_FILE = join(Repository.GITLET_DIR, "commit-graph");
+
+    static final byte[] MAGIC = {'C', 'G', 'P', 'H'};
+    static final int VERSION = 1;
+    // 文件头：魔数4 + 版本4 + 排好序的项数4 + 保留4
+    static final int HEADER_LENGTH = 16;
+    // 每项：id20 + parent 4 * 2 + 时间8 + generation4
+    static final int ENTRY_LENGTH = 40;
+    static final int ID_BYTES = ObjectCodec.ID_BYTES;
+    // 没有 parent
+    public static final int NO_PARENT = -1;
+    // gitlet 的 commit 最多两个 parent（merge）
+    private static final int MAX_PARENTS = 2;
+    // 追加的项超过这么多就整个重写排序
+    private static final int MAX_TAIL = 256;
+    // 找共同祖先时的颜色：从第一个 commit 能走到、从第二个能走到、是共同祖先的祖先、已经记入结果
+    private static final byte OURS = 1;
+    private static final byte THEIRS = 2;
+    private static final byte STALE = 4;
+    private static final byte RESULT = 8;
+
+    // 当前进程里的 commit-graph（flush 之后重新加载）
+    private static CommitGraph graph;
+
+    // 映射到内存的文件
+    private final ByteBuffer buffer;
+    // 文件里排好序的项数和总项数
+    private final int sortedCount;
+    private final int count;
+    // 文件损坏了，flush 时整个重写
+    private final boolean corrupted;
+    // 还没写进文件的项（位置从 count 开始）
+    private final List<ByteBuffer> pending = new ArrayList<>();
+    private final Map<String, Integer> pendingIds = new HashMap<>();
+
+    private CommitGraph(ByteBuffer buffer, int sortedCount, int count, boolean corrupted) {
+        this.buffer = buffer;
+        this.sortedCount = sortedCount;
+        this.count = count;
+        this.corrupted = corrupted;
+    }
+
+    /**
+     * 当前进程里的 commit-graph，文件不存在（旧仓库）时是空的，由调用方把需要的 commit 加进来
+     * @return CommitGraph
+     */
+    public static CommitGraph get() {
+        if (graph == null) {
+            graph = load();
+        }
+        return graph;
+    }
+
+    private static CommitGraph load() {
+        ByteBuffer empty = ByteBuffer.allocate(0);
+        if (!GRAPH_FILE.exists()) {
+            return new CommitGraph(empty, 0, 0, false);
+        }
+        try (FileChannel channel = FileChannel.open(GRAPH_FILE.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                return new CommitGraph(empty, 0, 0, true);
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.BIG_ENDIAN);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i]) {
+                    return new CommitGraph(empty, 0, 0, true);
+                }
+            }
+            int count = (int) ((size - HEADER_LENGTH) / ENTRY_LENGTH);
+            int sortedCount = buffer.getInt(8);
+            if (buffer.getInt(4) != VERSION || sortedCount < 0 || sortedCount > count) {
+                return new CommitGraph(empty, 0, 0, true);
+            }
+            return new CommitGraph(buffer, sortedCount, count, false);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // commit 的个数
+    public int size() {
+        return count + pending.size();
+    }
+
+    /**
+     * 查找 commit 的位置
+     * @param id commit id
+     * @return 位置，不在 commit-graph 里返回 -1
+     */
+    public int lookup(String id) {
+        byte[] target = ObjectCodec.idToBytes(id);
+        // 排好序的部分二分查找
+        int low = 0;
+        int high = sortedCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareId(mid, target);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        // 追加的部分顺序查找
+        for (int pos = sortedCount; pos < count; pos++) {
+            if (compareId(pos, target) == 0) {
+                return pos;
+            }
+        }
+        Integer pos = pendingIds.get(id);
+        return pos == null ? -1 : pos;
+    }
+
+    // 第 pos 项的 id 和 target 比较（按无符号字节）
+    private int compareId(int pos, byte[] target) {
+        int base = HEADER_LENGTH + pos * ENTRY_LENGTH;
+        for (int i = 0; i < ID_BYTES; i++) {
+            int cmp = (buffer.get(base + i) & 0xFF) - (target[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    // 第 pos 项所在的缓冲区和它在里面的起始位置
+    private ByteBuffer entryBuffer(int pos) {
+        return pos < count ? buffer : pending.get(pos - count);
+    }
+
+    private int entryBase(int pos) {
+        return pos < count ? HEADER_LENGTH + pos * ENTRY_LENGTH : 0;
+    }
+
+    public String getId(int pos) {
+        ByteBuffer entry = entryBuffer(pos);
+        int base = entryBase(pos);
+        byte[] id = new byte[ID_BYTES];
+        for (int i = 0; i < ID_BYTES; i++) {
+            id[i] = entry.get(base + i);
+        }
+        return ObjectCodec.bytesToId(id);
+    }
+
+    // parent 的个数
+    public int getParentCount(int pos) {
+        int n = 0;
+        while (n < MAX_PARENTS && getParent(pos, n) != NO_PARENT) {
+            n++;
+        }
+        return n;
+    }
+
+    // 第 i 个 parent 的位置，没有为 NO_PARENT
+    public int getParent(int pos, int i) {
+        return entryBuffer(pos).getInt(entryBase(pos) + ID_BYTES + i * 4);
+    }
+
+    // 提交时间（毫秒）
+    public long getTime(int pos) {
+        return entryBuffer(pos).getLong(entryBase(pos) + ID_BYTES + MAX_PARENTS * 4);
+    }
+
+    // generation：初始 commit 为 1，其他为 parent 的最大 generation + 1
+    public int getGeneration(int pos) {
+        return entryBuffer(pos).getInt(entryBase(pos) + ID_BYTES + MAX_PARENTS * 4 + 8);
+    }
+
+    /**
+     * 两个 commit 所有最好的共同祖先（不是其他共同祖先的祖先的那些），沿所有的 parent 走：
+     * 从 a 往下染 OURS，从 b 往下染 THEIRS，两种颜色都有的就是共同祖先；共同祖先的祖先染成 STALE，不再是候选，
+     * 队列里只剩 STALE 的时候就可以停了。按 generation 从大到小处理，一个 commit 出队时所有能走到它的 commit
+     * 都已经处理过了，它的颜色不会再变，每个 commit 只处理一次；比结果更老的历史都是 STALE，不会被走到太远
+     * @param a 第一个 commit 的位置
+     * @param b 第二个 commit 的位置
+     * @return 共同祖先的位置（generation 从大到小），没有共同祖先时为空
+     */
+    public List<Integer> getMergeBases(int a, int b) {
+        List<Integer> result = new ArrayList<>();
+        if (a == b) {
+            result.add(a);
+            return result;
+        }
+        byte[] flags = new byte[size()];
+        PriorityQueue<Integer> queue = new PriorityQueue<>(newestFirst());
+        flags[a] |= OURS;
+        flags[b] |= THEIRS;
+        queue.add(a);
+        queue.add(b);
+        // 队列里不是 STALE 的个数
+        int nonStale = 2;
+        while (nonStale > 0) {
+            int pos = queue.poll();
+            int paint = flags[pos] & (OURS | THEIRS | STALE);
+            if ((paint & STALE) == 0) {
+                nonStale--;
+            }
+            if (paint == (OURS | THEIRS)) {
+                if ((flags[pos] & RESULT) == 0) {
+                    flags[pos] |= RESULT;
+                    result.add(pos);
+                }
+                paint |= STALE;
+            }
+            for (int i = 0; i < getParentCount(pos); i++) {
+                int parent = getParent(pos, i);
+                if ((flags[parent] & paint) == paint) {
+                    continue;
+                }
+                boolean wasQueued = (flags[parent] & (OURS | THEIRS)) != 0;
+                boolean wasStale = (flags[parent] & STALE) != 0;
+                flags[parent] |= paint;
+                boolean isStale = (flags[parent] & STALE) != 0;
+                // 按 generation 处理，parent 还没出过队；已经在队列里的只更新计数
+                if (!wasQueued) {
+                    queue.add(parent);
+                    if (!isStale) {
+                        nonStale++;
+                    }
+                } else if (!wasStale && isStale) {
+                    nonStale--;
+                }
+            }
+        }
+        // 按 generation 处理时，一个共同祖先出队前，从其他共同祖先往下走的路径都已经把它染成 STALE 了，
+        // 所以结果里不会有多余的（某个共同祖先的祖先）
+        return result;
+    }
+
+    /**
+     * ancestor 是不是 descendant 的祖先（或者同一个 commit），generation 比 ancestor 小的不用再往下走；
+     * 走到有可达位图的 commit（见 PackFile.getBitmap）直接看位图，不用再往下走
+     * @param ancestor   可能的祖先的位置
+     * @param descendant 可能的后代的位置
+     * @return true 如果能从 descendant 走到 ancestor
+     */
+    public boolean isAncestor(int ancestor, int descendant) {
+        int minGeneration = getGeneration(ancestor);
+        PackFile bitmapPack = PackFile.getBitmapPack();
+        // ancestor 不在 pack 里说明它是 gc 之后才有的，不会是 gc 时已经有的 commit 的祖先
+        int ancestorIndex = bitmapPack == null ? -1 : bitmapPack.find(ObjectCodec.idToBytes(getId(ancestor)));
+        Set<Integer> visited = new HashSet<>();
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(descendant);
+        while (!stack.isEmpty()) {
+            int pos = stack.pop();
+            if (pos == ancestor) {
+                return true;
+            }
+            if (getGeneration(pos) <= minGeneration || !visited.add(pos)) {
+                continue;
+            }
+            BitSet reachable = bitmapPack == null ? null : bitmapPack.getBitmap(getId(pos));
+            if (reachable != null) {
+                if (ancestorIndex >= 0 && reachable.get(ancestorIndex)) {
+                    return true;
+                }
+                continue;
+            }
+            for (int i = 0; i < getParentCount(pos); i++) {
+                stack.push(getParent(pos, i));
+            }
+        }
+        return false;
+    }
+
+    // generation 大的在前，一样时新的在前
+    private Comparator<Integer> newestFirst() {
+        Comparator<Integer> byGeneration = Comparator.comparingInt(this::getGeneration);
+        return byGeneration.thenComparingLong(this::getTime).reversed();
+    }
+
+    /**
+     * 加入一个 commit（调用 flush 之后才写进文件），它的 parent 必须已经在 commit-graph 里
+     * @param id      commit id
+     * @param parents parent 的 id
+     * @param time    提交时间（毫秒）
+     * @return 位置
+     */
+    public int add(String id, List<String> parents, long time) {
+        if (parents.size() > MAX_PARENTS) {
+            throw new IllegalArgumentException("commit-graph: too many parents: " + id);
+        }
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_LENGTH);
+        entry.put(ObjectCodec.idToBytes(id));
+        int generation = 1;
+        for (int i = 0; i < MAX_PARENTS; i++) {
+            int parent = NO_PARENT;
+            if (i < parents.size()) {
+                parent = lookup(parents.get(i));
+                if (parent < 0) {
+                    throw new IllegalArgumentException("commit-graph: missing parent: " + parents.get(i));
+                }
+                generation = Math.max(generation, getGeneration(parent) + 1);
+            }
+            entry.putInt(parent);
+        }
+        entry.putLong(time);
+        entry.putInt(generation);
+        int pos = size();
+        pending.add(entry);
+        pendingIds.put(id, pos);
+        return pos;
+    }
+
+    /**
+     * 把新加入的项写进文件：追加在后面，追加的项太多了（或者文件损坏了）就整个重写
+     * 之后 get() 会重新加载，原来的位置可能失效
+     */
+    public void flush() {
+        if (pending.isEmpty() && !corrupted) {
+            return;
+        }
+        try {
+            if (corrupted || count == 0 || count - sortedCount + pending.size() > MAX_TAIL) {
+                rewrite();
+            } else {
+                // 接在最后一个完整的项后面写：上次追加时崩溃留下的半个项先截掉，否则后面的项全都错位
+                try (RandomAccessFile out = new RandomAccessFile(GRAPH_FILE, "rw")) {
+                    long validLength = HEADER_LENGTH + (long) count * ENTRY_LENGTH;
+                    out.setLength(validLength);
+                    out.seek(validLength);
+                    for (ByteBuffer entry : pending) {
+                        out.write(entry.array());
+                    }
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        graph = null;
+    }
+
+    // 按 id 排序后整个重写（先写临时文件再改名，其他进程看到的总是完整的文件）
+    private void rewrite() throws IOException {
+        int total = size();
+        byte[][] entries = new byte[total][];
+        for (int pos = 0; pos < total; pos++) {
+            ByteBuffer entry = entryBuffer(pos);
+            int base = entryBase(pos);
+            entries[pos] = new byte[ENTRY_LENGTH];
+            for (int i = 0; i < ENTRY_LENGTH; i++) {
+                entries[pos][i] = entry.get(base + i);
+            }
+        }
+        Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compareIds(entries[a], entries[b]));
+        // 旧位置 => 新位置
+        int[] newPos = new int[total];
+        for (int i = 0; i < total; i++) {
+            newPos[order[i]] = i;
+        }
+        File tmp = join(Repository.GITLET_DIR, GRAPH_FILE.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(total);
+            out.writeInt(0);
+            for (int i = 0; i < total; i++) {
+                ByteBuffer entry = ByteBuffer.wrap(entries[order[i]]);
+                for (int p = 0; p < MAX_PARENTS; p++) {
+                    int parent = entry.getInt(ID_BYTES + p * 4);
+                    if (parent != NO_PARENT) {
+                        entry.putInt(ID_BYTES + p * 4, newPos[parent]);
+                    }
+                }
+                out.write(entry.array());
+            }
+        }
+        Files.move(tmp.toPath(), GRAPH_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int compareIds(byte[] a, byte[] b) {
+        for (int i = 0; i < ID_BYTES; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+}
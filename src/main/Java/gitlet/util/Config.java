@@ -0,0 +1,116 @@
+package gitlet.util;
+
+import gitlet.Lazy;
+import gitlet.Repository;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.zip.Deflater;
+
+import static gitlet.util.MyUtils.exit;
+import static gitlet.util.MyUtils.lazy;
+import static gitlet.util.Utils.readContentsAsString;
+import static gitlet.util.Utils.writeContents;
+
+/**
+ * 仓库配置：.gitlet/config，每行一个 key=value
+ * 没有配置文件或者没有配置某一项时使用默认值
+ */
+public class Config {
+
+    // 对象的压缩等级：-1 为 zlib 默认等级，0 为不压缩，1~9 越大压得越小、越慢
+    public static final String CORE_COMPRESSION = "core.compression";
+    // blob 的 id 是否只由内容决定（新仓库为 true；旧仓库没有这一项，id 由路径和内容决定，执行 migrate 后变为 true）
+    public static final String CORE_CONTENT_ADDRESSED_BLOBS = "core.contentAddressedBlobs";
+    // 并行计算（比如扫描工作区时计算 blob id）用的线程数，默认为 CPU 核数
+    public static final String CORE_PARALLELISM = "core.parallelism";
+    // 遍历历史时提前在后台读取的 commit 个数，0 表示不预读
+    public static final String CORE_PREFETCH_COMMITS = "core.prefetchCommits";
+    // checkout、reset、merge 并行恢复文件时，同时在处理的对象最多占多少字节
+    public static final String CORE_RESTORE_MEMORY_LIMIT = "core.restoreMemoryLimit";
+    // 超过这个大小（字节）的文件 add 时按内容切块存储，blob 只记录块的列表
+    public static final String CORE_CHUNK_THRESHOLD = "core.chunkThreshold";
+    // 超过这个大小（字节）的 blob，gc 时不打包也不算增量，保留为松散对象；merge 时也不逐行合并
+    public static final String CORE_BIG_FILE_THRESHOLD = "core.bigFileThreshold";
+    // gc 时 pack 里增量链的最大深度，越深越省空间，读的时候越慢
+    public static final String PACK_DEPTH = "pack.depth";
+    // gc 时最多留几个路径上一个版本的 blob 作为增量基础，越大越可能找到基础，占的内存越多
+    public static final String PACK_WINDOW = "pack.window";
+    // 读 pack 时增量基础对象缓存的大小（字节）
+    public static final String PACK_DELTA_BASE_CACHE_LIMIT = "pack.deltaBaseCacheLimit";
+
+    // 读取配置文件（每个进程只读一次）
+    private static final Lazy<Properties> properties = lazy(() -> {
+        Properties p = new Properties();
+        if (Repository.CONFIG.exists()) {
+            try (Reader reader = new StringReader(readContentsAsString(Repository.CONFIG))) {
+                p.load(reader);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return p;
+    });
+
+    /**
+     * 读取字符串配置
+     * @param key          配置项
+     * @param defaultValue 默认值
+     * @return 配置值
+     */
+    public static String getString(String key, String defaultValue) {
+        return properties.get().getProperty(key, defaultValue).trim();
+    }
+
+    /**
+     * 读取整数配置，格式不对就退出
+     * @param key          配置项
+     * @param defaultValue 默认值
+     * @return 配置值
+     */
+    public static int getInt(String key, int defaultValue) {
+        String value = getString(key, String.valueOf(defaultValue));
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException excp) {
+            exit("Bad config value for '%s': %s", key, value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * 读取布尔配置
+     * @param key          配置项
+     * @param defaultValue 默认值
+     * @return 配置值
+     */
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * 修改配置并写回配置文件（按 key 排序）
+     * @param key   配置项
+     * @param value 配置值
+     */
+    public static void set(String key, String value) {
+        properties.get().setProperty(key, value);
+        StringBuilder configBuilder = new StringBuilder();
+        for (String k : new TreeSet<>(properties.get().stringPropertyNames())) {
+            configBuilder.append(k).append(" = ").append(properties.get().getProperty(k)).append("\n");
+        }
+        writeContents(Repository.CONFIG, configBuilder.toString());
+    }
+
+    // 对象的压缩等级
+    public static int getCompressionLevel() {
+        int level = getInt(CORE_COMPRESSION, Deflater.DEFAULT_COMPRESSION);
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            exit("Bad config value for '%s': %d", CORE_COMPRESSION, level);
+        }
+        return level;
+    }
+}
@@ -0,0 +1,172 @@
+package gitlet.util;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static gitlet.util.ObjectCodec.readVarint;
+import static gitlet.util.ObjectCodec.writeVarint;
+
+/**
+ * 两个版本之间的增量（copy/insert 指令，格式和 git 的 delta 一样）：
+ * 基础版本长度(varint) + 结果长度(varint) + 若干指令
+ * copy：1xxxxxxx，低4位表示后面跟着哪几个 offset 字节，接下来3位表示哪几个 size 字节（size 为 0 表示 0x10000）
+ * insert：0xxxxxxx，低7位是长度(1~127)，后面跟着原始字节
+ */
+public class Delta {
+
+    // 以这个长度的块为单位给基础版本建索引，比它短的相同内容不值得 copy
+    private static final int BLOCK = 16;
+    // 一条 copy 指令最多复制的长度（3个 size 字节）
+    private static final int MAX_COPY = 0xFFFFFF;
+    // 一条 insert 指令最多插入的长度
+    private static final int MAX_INSERT = 0x7F;
+
+    /**
+     * 计算从 base 得到 target 的增量
+     * @param base   基础版本
+     * @param target 目标版本
+     * @return 增量
+     */
+    public static byte[] create(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarint(out, base.length);
+        writeVarint(out, target.length);
+
+        // 基础版本每 BLOCK 字节一块，块的 hash => 块的起始位置（相同 hash 保留最前面的）
+        int tableSize = Integer.highestOneBit(Math.max(base.length / BLOCK, 1) * 2);
+        int[] table = new int[tableSize];
+        Arrays.fill(table, -1);
+        for (int i = base.length - BLOCK - (base.length % BLOCK); i >= 0; i -= BLOCK) {
+            table[hash(base, i) & (tableSize - 1)] = i;
+        }
+
+        int insertStart = 0;
+        int i = 0;
+        while (i + BLOCK <= target.length) {
+            int candidate = base.length >= BLOCK ? table[hash(target, i) & (tableSize - 1)] : -1;
+            int matchLength = candidate >= 0 ? matchLength(base, candidate, target, i) : 0;
+            if (matchLength < BLOCK) {
+                i++;
+                continue;
+            }
+            // 往回扩展：待插入的内容末尾如果和基础版本相同，也并进 copy
+            while (candidate > 0 && i > insertStart && base[candidate - 1] == target[i - 1]) {
+                candidate--;
+                i--;
+                matchLength++;
+            }
+            writeInsert(out, target, insertStart, i);
+            writeCopy(out, candidate, matchLength);
+            i += matchLength;
+            insertStart = i;
+        }
+        writeInsert(out, target, insertStart, target.length);
+        return out.toByteArray();
+    }
+
+    /**
+     * 把增量应用到基础版本上，得到目标版本
+     * @param base  基础版本
+     * @param delta 增量
+     * @return 目标版本
+     */
+    public static byte[] apply(byte[] base, byte[] delta) {
+        int[] pos = {0};
+        long baseLength = readVarint(delta, pos);
+        long resultLength = readVarint(delta, pos);
+        if (baseLength != base.length) {
+            throw new IllegalArgumentException("corrupted delta: base length mismatch");
+        }
+        byte[] result = new byte[(int) resultLength];
+        int n = 0;
+        int p = pos[0];
+        while (p < delta.length) {
+            int op = delta[p++] & 0xFF;
+            if ((op & 0x80) != 0) {
+                long offset = 0;
+                for (int k = 0; k < 4; k++) {
+                    if ((op & (1 << k)) != 0) {
+                        offset |= (long) (delta[p++] & 0xFF) << (8 * k);
+                    }
+                }
+                int size = 0;
+                for (int k = 0; k < 3; k++) {
+                    if ((op & (0x10 << k)) != 0) {
+                        size |= (delta[p++] & 0xFF) << (8 * k);
+                    }
+                }
+                if (size == 0) {
+                    size = 0x10000;
+                }
+                System.arraycopy(base, (int) offset, result, n, size);
+                n += size;
+            } else if (op != 0) {
+                System.arraycopy(delta, p, result, n, op);
+                p += op;
+                n += op;
+            } else {
+                throw new IllegalArgumentException("corrupted delta: bad opcode");
+            }
+        }
+        if (n != result.length) {
+            throw new IllegalArgumentException("corrupted delta: result length mismatch");
+        }
+        return result;
+    }
+
+    // 从 base[b] 和 target[t] 开始往后能匹配多长
+    private static int matchLength(byte[] base, int b, byte[] target, int t) {
+        int n = 0;
+        int max = Math.min(base.length - b, target.length - t);
+        while (n < max && base[b + n] == target[t + n]) {
+            n++;
+        }
+        return n;
+    }
+
+    // 一个块的 hash
+    private static int hash(byte[] bytes, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i++) {
+            h = h * 31 + bytes[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // insert 指令：每条最多 127 字节
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int start, int end) {
+        while (start < end) {
+            int length = Math.min(end - start, MAX_INSERT);
+            out.write(length);
+            out.write(target, start, length);
+            start += length;
+        }
+    }
+
+    // copy 指令：超出3个 size 字节能表示的长度就拆成多条
+    private static void writeCopy(ByteArrayOutputStream out, long offset, int length) {
+        while (length > 0) {
+            int size = Math.min(length, MAX_COPY);
+            int op = 0x80;
+            ByteArrayOutputStream args = new ByteArrayOutputStream(7);
+            for (int k = 0; k < 4; k++) {
+                int b = (int) (offset >>> (8 * k)) & 0xFF;
+                if (b != 0) {
+                    op |= 1 << k;
+                    args.write(b);
+                }
+            }
+            for (int k = 0; k < 3; k++) {
+                int b = (size >>> (8 * k)) & 0xFF;
+                if (b != 0) {
+                    op |= 0x10 << k;
+                    args.write(b);
+                }
+            }
+            out.write(op);
+            out.write(args.toByteArray(), 0, args.size());
+            offset += size;
+            length -= size;
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package gitlet.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * 按行比较两个文件，得到编辑列表（哪些行删掉、哪些行加进来）
+ * 先把每一行换成整数编号（内容一样的行编号一样），之后只比较整数
+ * 主要用 histogram diff：在两边找一段相同的行，以其中出现次数最少的行为准（越少越可能是真正对应的行），
+ * 以这段为界把问题分成左右两半继续找；找不到出现次数不多的行时，这一段退回到线性空间的 Myers 算法，
+ * 差别太大时 Myers 提前切开（耗时有上限，结果不一定最短）
+ */
+public class Diff {
+
+    // 一行在这一段里出现超过这么多次，就不拿它来对齐
+    private static final int MAX_CHAIN = 64;
+    // Myers 至少走这么多步才允许提前切开（和 xdiff 的 XDL_MAX_COST_MIN 一样）
+    private static final int MIN_COST = 256;
+    private static final byte[] NO_NEWLINE = "\\ No newline at end of file\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 一处修改：A 的 [beginA, endA) 行换成了 B 的 [beginB, endB) 行（为空表示纯插入或纯删除）
+     */
+    public static class Edit {
+        private final int beginA;
+        private final int endA;
+        private final int beginB;
+        private final int endB;
+
+        public Edit(int beginA, int endA, int beginB, int endB) {
+            this.beginA = beginA;
+            this.endA = endA;
+            this.beginB = beginB;
+            this.endB = endB;
+        }
+
+        public int getBeginA() {
+            return beginA;
+        }
+
+        public int getEndA() {
+            return endA;
+        }
+
+        public int getBeginB() {
+            return beginB;
+        }
+
+        public int getEndB() {
+            return endB;
+        }
+    }
+
+    /**
+     * 比较两个文件
+     * @param a 原来的内容
+     * @param b 新的内容
+     * @return 按位置排好序的编辑列表
+     */
+    public static List<Edit> diff(Lines a, Lines b) {
+        int[] idsA = new int[a.size()];
+        int[] idsB = new int[b.size()];
+        int count = intern(a, b, idsA, idsB);
+        return histogram(idsA, idsB, count);
+    }
+
+    /**
+     * 给每一行编号，内容一样的行编号一样
+     * @return 不同内容的行数（编号是 [0, count)）
+     */
+    private static int intern(Lines a, Lines b, int[] idsA, int[] idsB) {
+        int capacity = Integer.highestOneBit(Math.max(2, (a.size() + b.size()) * 2) - 1) << 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        int[] hashes = new int[a.size() + b.size()];
+        Lines[] texts = new Lines[a.size() + b.size()];
+        int[] lines = new int[a.size() + b.size()];
+        int count = 0;
+        for (int side = 0; side < 2; side++) {
+            Lines text = side == 0 ? a : b;
+            int[] ids = side == 0 ? idsA : idsB;
+            for (int i = 0; i < text.size(); i++) {
+                int hash = text.hash(i);
+                int slot = (hash ^ (hash >>> 16)) & (capacity - 1);
+                int id;
+                while ((id = table[slot]) >= 0
+                        && (hashes[id] != hash || !texts[id].lineEquals(lines[id], text, i))) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                if (id < 0) {
+                    id = count++;
+                    table[slot] = id;
+                    hashes[id] = hash;
+                    texts[id] = text;
+                    lines[id] = i;
+                }
+                ids[i] = id;
+            }
+        }
+        return count;
+    }
+
+    // histogram diff，用栈代替递归（很长的文件递归太深），先处理左边，编辑按位置顺序产生
+    private static List<Edit> histogram(int[] a, int[] b, int count) {
+        List<Edit> edits = new ArrayList<>();
+        // 这一段里每种行在 A 中出现的次数和位置（head 是第一次出现的位置，next 串起后面的）
+        int[] occurrences = new int[count];
+        int[] head = new int[count];
+        Arrays.fill(head, -1);
+        int[] next = new int[a.length];
+        Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{0, a.length, 0, b.length});
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            int beginA = range[0];
+            int endA = range[1];
+            int beginB = range[2];
+            int endB = range[3];
+            // 去掉相同的开头和结尾
+            while (beginA < endA && beginB < endB && a[beginA] == b[beginB]) {
+                beginA++;
+                beginB++;
+            }
+            while (beginA < endA && beginB < endB && a[endA - 1] == b[endB - 1]) {
+                endA--;
+                endB--;
+            }
+            if (beginA == endA || beginB == endB) {
+                if (beginA != endA || beginB != endB) {
+                    addEdit(edits, beginA, endA, beginB, endB);
+                }
+                continue;
+            }
+            for (int i = endA - 1; i >= beginA; i--) {
+                next[i] = head[a[i]];
+                head[a[i]] = i;
+                occurrences[a[i]]++;
+            }
+            // 找出现次数最少（一样少就最长）的一段相同的行
+            int bestOccurrences = MAX_CHAIN + 1;
+            int bestLength = 0;
+            int bestA = 0;
+            int bestB = 0;
+            boolean hasCommon = false;
+            for (int j = beginB; j < endB; ) {
+                int nextJ = j + 1;
+                hasCommon |= occurrences[b[j]] > 0;
+                if (occurrences[b[j]] > 0 && occurrences[b[j]] <= bestOccurrences) {
+                    for (int i = head[b[j]]; i >= 0; i = next[i]) {
+                        int startA = i;
+                        int startB = j;
+                        while (startA > beginA && startB > beginB && a[startA - 1] == b[startB - 1]) {
+                            startA--;
+                            startB--;
+                        }
+                        int stopA = i + 1;
+                        int stopB = j + 1;
+                        while (stopA < endA && stopB < endB && a[stopA] == b[stopB]) {
+                            stopA++;
+                            stopB++;
+                        }
+                        int regionOccurrences = MAX_CHAIN + 1;
+                        for (int k = startA; k < stopA; k++) {
+                            regionOccurrences = Math.min(regionOccurrences, occurrences[a[k]]);
+                        }
+                        int length = stopA - startA;
+                        if (regionOccurrences < bestOccurrences
+                                || (regionOccurrences == bestOccurrences && length > bestLength)) {
+                            bestOccurrences = regionOccurrences;
+                            bestLength = length;
+                            bestA = startA;
+                            bestB = startB;
+                        }
+                        // 这一段里面的行不用再看了
+                        nextJ = Math.max(nextJ, stopB);
+                    }
+                }
+                j = nextJ;
+            }
+            for (int i = beginA; i < endA; i++) {
+                head[a[i]] = -1;
+                occurrences[a[i]] = 0;
+            }
+            if (!hasCommon) {
+                // 没有相同的行，整段替换（交给 Myers 要走完所有的对角线）
+                addEdit(edits, beginA, endA, beginB, endB);
+                continue;
+            }
+            if (bestLength == 0) {
+                // 相同的行都出现了很多次，这一段交给 Myers
+                myers(a, b, beginA, endA, beginB, endB, edits);
+                continue;
+            }
+            ranges.push(new int[]{bestA + bestLength, endA, bestB + bestLength, endB});
+            ranges.push(new int[]{beginA, bestA, beginB, bestB});
+        }
+        return edits;
+    }
+
+    /**
+     * 线性空间的 Myers 算法：同时从两头找最短编辑路径，在中间相遇的那段相同的行（middle snake）处一分为二，
+     * 两半再分别处理（用栈代替递归，先处理左边）
+     */
+    private static void myers(int[] a, int[] b, int beginA, int endA, int beginB, int endB, List<Edit> edits) {
+        Deque<int[]> ranges = new ArrayDeque<>();
+        ranges.push(new int[]{beginA, endA, beginB, endB});
+        while (!ranges.isEmpty()) {
+            int[] range = ranges.pop();
+            beginA = range[0];
+            endA = range[1];
+            beginB = range[2];
+            endB = range[3];
+            while (beginA < endA && beginB < endB && a[beginA] == b[beginB]) {
+                beginA++;
+                beginB++;
+            }
+            while (beginA < endA && beginB < endB && a[endA - 1] == b[endB - 1]) {
+                endA--;
+                endB--;
+            }
+            if (beginA == endA || beginB == endB) {
+                if (beginA != endA || beginB != endB) {
+                    addEdit(edits, beginA, endA, beginB, endB);
+                }
+                continue;
+            }
+            int[] snake = middleSnake(a, b, beginA, endA, beginB, endB);
+            if (snake == null) {
+                // 找不到能把这一段分开的位置，整段替换
+                addEdit(edits, beginA, endA, beginB, endB);
+                continue;
+            }
+            ranges.push(new int[]{snake[2], endA, snake[3], endB});
+            ranges.push(new int[]{beginA, snake[0], beginB, snake[1]});
+        }
+    }
+
+    /**
+     * 找 middle snake：x 是 A 的位置，y 是 B 的位置，对角线 k = (x - beginA) - (y - beginB)
+     * forward[k] 是从左上往前走 d 步在对角线 k 上最远的 x，backward[c] 是从右下往回走 d 步在对角线 c 上最远的 y
+     * （c = k - delta，delta 是两边长度差）
+     * 两边差别很大时（d 超过 maxCost 还没相遇）不再找最短的，像 git 的 xdiff 一样取某一头走得最远的位置切开，
+     * 结果不一定最短，但耗时有上限（否则是 O(N * D)，两个不相关的大文件要几十秒）
+     * @return 中间那段相同的行 {startA, startB, stopA, stopB}（提前切开时是一个点），切不开时返回 null
+     */
+    private static int[] middleSnake(int[] a, int[] b, int beginA, int endA, int beginB, int endB) {
+        int width = endA - beginA;
+        int height = endB - beginB;
+        int delta = width - height;
+        boolean odd = (delta & 1) != 0;
+        int max = (width + height + 1) / 2;
+        int maxCost = Math.max(MIN_COST, (int) Math.sqrt(width + height));
+        int offset = max + 1;
+        int[] forward = new int[2 * max + 3];
+        int[] backward = new int[2 * max + 3];
+        forward[offset + 1] = beginA;
+        backward[offset + 1] = endB;
+        for (int d = 0; d <= max; d++) {
+            for (int k = d; k >= -d; k -= 2) {
+                int x;
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                int y = beginB + (x - beginA) - k;
+                int startX = x;
+                int startY = y;
+                while (x < endA && y < endB && a[x] == b[y]) {
+                    x++;
+                    y++;
+                }
+                forward[offset + k] = x;
+                int c = k - delta;
+                if (odd && c >= -(d - 1) && c <= d - 1 && y >= backward[offset + c]) {
+                    return new int[]{startX, startY, x, y};
+                }
+            }
+            for (int c = d; c >= -d; c -= 2) {
+                int y;
+                if (c == -d || (c != d && backward[offset + c - 1] > backward[offset + c + 1])) {
+                    y = backward[offset + c + 1];
+                } else {
+                    y = backward[offset + c - 1] - 1;
+                }
+                int k = c + delta;
+                int x = beginA + (y - beginB) + k;
+                int stopX = x;
+                int stopY = y;
+                while (x > beginA && y > beginB && a[x - 1] == b[y - 1]) {
+                    x--;
+                    y--;
+                }
+                backward[offset + c] = y;
+                if (!odd && k >= -d && k <= d && x <= forward[offset + k]) {
+                    return new int[]{x, y, stopX, stopY};
+                }
+            }
+            if (d >= maxCost) {
+                return furthestPoint(forward, backward, offset, d, delta, beginA, endA, beginB, endB);
+            }
+        }
+        throw new IllegalArgumentException("diff: no middle snake found");
+    }
+
+    /**
+     * 走了 d 步之后，前向路径上 x + y 最大的点和反向路径上 x + y 最小的点，取离自己起点更远的那个
+     * @return 切开的点 {x, y, x, y}，两个点都在角上（切不开）时返回 null
+     */
+    private static int[] furthestPoint(int[] forward, int[] backward, int offset, int d, int delta,
+                                       int beginA, int endA, int beginB, int endB) {
+        int bestForward = -1;
+        int forwardX = 0;
+        int forwardY = 0;
+        for (int k = d; k >= -d; k -= 2) {
+            int x = forward[offset + k];
+            int y = beginB + (x - beginA) - k;
+            if (x <= endA && y >= beginB && y <= endB && x + y > bestForward) {
+                bestForward = x + y;
+                forwardX = x;
+                forwardY = y;
+            }
+        }
+        int bestBackward = Integer.MAX_VALUE;
+        int backwardX = 0;
+        int backwardY = 0;
+        for (int c = d; c >= -d; c -= 2) {
+            int y = backward[offset + c];
+            int x = beginA + (y - beginB) + c + delta;
+            if (x >= beginA && x <= endA && y >= beginB && x + y < bestBackward) {
+                bestBackward = x + y;
+                backwardX = x;
+                backwardY = y;
+            }
+        }
+        boolean forwardUsable = bestForward > beginA + beginB && bestForward < endA + endB;
+        boolean backwardUsable = bestBackward > beginA + beginB && bestBackward < endA + endB;
+        if (forwardUsable && (!backwardUsable
+                || bestForward - (beginA + beginB) >= (endA + endB) - bestBackward)) {
+            return new int[]{forwardX, forwardY, forwardX, forwardY};
+        }
+        if (backwardUsable) {
+            return new int[]{backwardX, backwardY, backwardX, backwardY};
+        }
+        return null;
+    }
+
+    // 加入一处修改，和前一处首尾相接就合并
+    private static void addEdit(List<Edit> edits, int beginA, int endA, int beginB, int endB) {
+        if (!edits.isEmpty()) {
+            Edit last = edits.get(edits.size() - 1);
+            if (last.endA == beginA && last.endB == beginB) {
+                edits.set(edits.size() - 1, new Edit(last.beginA, endA, last.beginB, endB));
+                return;
+            }
+        }
+        edits.add(new Edit(beginA, endA, beginB, endB));
+    }
+
+    /**
+     * 以 unified 格式写出编辑（不含文件名那两行），相距不超过 2 * context 行的修改合成一段
+     * @param out     输出流
+     * @param a       原来的内容
+     * @param b       新的内容
+     * @param edits   编辑列表
+     * @param context 上下文行数
+     */
+    public static void writeUnified(OutputStream out, Lines a, Lines b, List<Edit> edits, int context)
+            throws IOException {
+        int first = 0;
+        while (first < edits.size()) {
+            int last = first;
+            while (last + 1 < edits.size() && edits.get(last + 1).beginA - edits.get(last).endA <= 2 * context) {
+                last++;
+            }
+            Edit firstEdit = edits.get(first);
+            Edit lastEdit = edits.get(last);
+            int startA = Math.max(0, firstEdit.beginA - context);
+            int stopA = Math.min(a.size(), lastEdit.endA + context);
+            int startB = firstEdit.beginB - (firstEdit.beginA - startA);
+            int stopB = lastEdit.endB + (stopA - lastEdit.endA);
+            String header = "@@ -" + range(startA, stopA - startA) + " +" + range(startB, stopB - startB) + " @@\n";
+            out.write(header.getBytes(StandardCharsets.UTF_8));
+            int pos = startA;
+            for (int i = first; i <= last; i++) {
+                Edit edit = edits.get(i);
+                writeLines(out, ' ', a, pos, edit.beginA);
+                writeLines(out, '-', a, edit.beginA, edit.endA);
+                writeLines(out, '+', b, edit.beginB, edit.endB);
+                pos = edit.endA;
+            }
+            writeLines(out, ' ', a, pos, stopA);
+            first = last + 1;
+        }
+    }
+
+    // 段头里的范围：行号从 1 开始，只有一行时省略行数，没有行时行号是前一行
+    private static String range(int start, int count) {
+        if (count == 1) {
+            return String.valueOf(start + 1);
+        }
+        return (count == 0 ? start : start + 1) + "," + count;
+    }
+
+    private static void writeLines(OutputStream out, char prefix, Lines text, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            out.write(prefix);
+            text.writeLine(out, i);
+            out.write('\n');
+            if (!text.hasNewline(i)) {
+                out.write(NO_NEWLINE);
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package gitlet.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * 可以用 ObjectCodec 编码的对象（blob、commit、暂存区）
+ * 仍然继承 Serializable，是为了能读旧仓库里用 Java 序列化写下的对象
+ */
+public interface Encodable extends Serializable {
+
+    /**
+     * 对象的类型标记，写在文件头里
+     * @return ObjectCodec.TYPE_*
+     */
+    byte getType();
+
+    /**
+     * 负载格式的版本号，写在文件头里，读取时原样交给解码器
+     * @return Payload version
+     */
+    byte getVersion();
+
+    /**
+     * 把对象的字段按顺序写入负载
+     * @param out 负载输出流
+     */
+    void encode(DataOutputStream out) throws IOException;
+}
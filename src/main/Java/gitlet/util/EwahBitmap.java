@@ -0,0 +1,104 @@
+package gitlet.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * EWAH 压缩的位图：把 64 位一个的字分成“干净的字”（全 0 或全 1）和“字面量”（其他），
+ * 一串干净的字只用一个标记字表示：
+ * 标记字：第 0 位是干净的字的值 + 第 1~32 位是干净的字的个数 + 第 33~63 位是后面跟着的字面量个数
+ * 整个位图：字数(4字节) + 若干（标记字 + 字面量）(每个8字节)
+ * 可达对象的位图大多是一长串 1（老的对象）和一长串 0，压缩后很小
+ */
+public class EwahBitmap {
+
+    // 标记字里的个数上限（干净的字的个数有 32 位，但 Java 数组最长只到 int）
+    private static final long MAX_RUN = Integer.MAX_VALUE;
+    private static final long MAX_LITERALS = (1L << 31) - 1;
+
+    /**
+     * 压缩写入
+     * @param out  输出流
+     * @param bits 位图
+     */
+    public static void write(DataOutputStream out, BitSet bits) throws IOException {
+        long[] words = bits.toLongArray();
+        List<Long> encoded = new ArrayList<>();
+        int i = 0;
+        while (i < words.length) {
+            // 先数一串干净的字
+            boolean runBit = words[i] == -1L;
+            long run = 0;
+            while (i < words.length && run < MAX_RUN && isClean(words[i]) && (words[i] == -1L) == runBit) {
+                run++;
+                i++;
+            }
+            // 再数后面的字面量
+            int literalsStart = i;
+            while (i < words.length && i - literalsStart < MAX_LITERALS && !isClean(words[i])) {
+                i++;
+            }
+            long literals = i - literalsStart;
+            encoded.add((runBit ? 1L : 0L) | (run << 1) | (literals << 33));
+            for (int j = literalsStart; j < i; j++) {
+                encoded.add(words[j]);
+            }
+        }
+        out.writeInt(encoded.size());
+        for (long word : encoded) {
+            out.writeLong(word);
+        }
+    }
+
+    /**
+     * 解压读出
+     * @param buffer 缓冲区
+     * @param offset 位图在缓冲区里的起始位置
+     * @return 位图
+     */
+    public static BitSet read(ByteBuffer buffer, int offset) {
+        int size = buffer.getInt(offset);
+        int pos = offset + 4;
+        int end = pos + size * 8;
+        List<long[]> parts = new ArrayList<>();
+        int length = 0;
+        while (pos < end) {
+            long marker = buffer.getLong(pos);
+            pos += 8;
+            int run = (int) ((marker >>> 1) & 0xFFFFFFFFL);
+            int literals = (int) (marker >>> 33);
+            long[] part = new long[run + literals];
+            if ((marker & 1) != 0) {
+                for (int i = 0; i < run; i++) {
+                    part[i] = -1L;
+                }
+            }
+            for (int i = 0; i < literals; i++) {
+                part[run + i] = buffer.getLong(pos);
+                pos += 8;
+            }
+            parts.add(part);
+            length += part.length;
+        }
+        long[] words = new long[length];
+        int index = 0;
+        for (long[] part : parts) {
+            System.arraycopy(part, 0, words, index, part.length);
+            index += part.length;
+        }
+        return BitSet.valueOf(words);
+    }
+
+    // 压缩后的长度（字节）
+    public static int length(ByteBuffer buffer, int offset) {
+        return 4 + buffer.getInt(offset) * 8;
+    }
+
+    private static boolean isClean(long word) {
+        return word == 0 || word == -1L;
+    }
+}
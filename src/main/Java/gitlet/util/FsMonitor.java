@@ -0,0 +1,264 @@
+package gitlet.util;
+
+import gitlet.Repository;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static gitlet.util.MyUtils.exit;
+import static gitlet.util.Utils.join;
+
+/**
+ * 文件系统监视器：一个长期运行的进程（gitlet fsmonitor），用 WatchService 监视工作区，把有变化的文件名追加到日志里
+ * status 等命令只需要检查上次以来日志里新增的文件，其他文件直接用 index 里缓存的 blob id
+ * .gitlet/fsmonitor.lock：监视器运行期间一直持有它的文件锁，其他进程拿得到锁就说明监视器没有运行
+ * .gitlet/fsmonitor-log：  第一行是监视器这次运行的 id，后面每行一个变化的路径（相对于工作区，'/' 分隔），
+ *                          变化的是目录（新建、改名、删除）时客户端重新看整个目录，"*" 表示需要完整扫描
+ *                          （刚启动时、事件队列溢出时）
+ * index 里记录 token（监视器 id:已经处理到的日志位置），下次从这个位置往后读；
+ * 监视器重启过（id 不同）、没有在运行、或者日志里有 "*"，都要完整扫描工作区
+ * 读日志之前先在 .gitlet 下创建一个 cookie 文件，等监视器处理到它（删除它），保证之前发生的变化都已经写进日志
+ */
+public class FsMonitor {
+
+    private static final File LOCK_FILE = join(Repository.GITLET_DIR, "fsmonitor.lock");
+    private static final File LOG_FILE = join(Repository.GITLET_DIR, "fsmonitor-log");
+    private static final String COOKIE_PREFIX = "fsmonitor-cookie-";
+    // 需要完整扫描的标记
+    private static final String FULL_SCAN = "*";
+    // 日志超过这个大小就重新开始（换一个 id，客户端完整扫描一次）
+    private static final long MAX_LOG_SIZE = 8 << 20;
+    // 等待监视器处理 cookie 的最长时间（毫秒），超时就完整扫描
+    private static final long COOKIE_TIMEOUT = 2000;
+
+    /**
+     * 运行监视器，直到进程被结束
+     */
+    public static void run() {
+        try (RandomAccessFile lockFile = new RandomAccessFile(LOCK_FILE, "rw");
+             FileChannel lockChannel = lockFile.getChannel();
+             FileLock lock = lockChannel.tryLock()) {
+            if (lock == null) {
+                exit("A filesystem monitor is already running.");
+            }
+            watch();
+        } catch (IOException | InterruptedException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // 监视工作区（包括所有子目录）和 .gitlet（只关心 cookie），把变化写进日志
+    private static void watch() throws IOException, InterruptedException {
+        Path workingDir = Repository.CWD.toPath();
+        Path gitletDir = Repository.GITLET_DIR.toPath();
+        try (WatchService watchService = FileSystems.getDefault().newWatchService()) {
+            // WatchService 只监视一层，每个目录单独注册：key => 目录
+            Map<WatchKey, Path> dirs = new HashMap<>();
+            register(watchService, workingDir, dirs);
+            WatchKey gitletDirKey = gitletDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE);
+            OutputStream log = startLog();
+            while (true) {
+                Set<String> changed = new HashSet<>();
+                Set<Path> cookies = new HashSet<>();
+                boolean overflow = false;
+                // 等到第一个事件，然后把已经到达的事件都取出来，一起写进日志
+                WatchKey key = watchService.take();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            overflow = true;
+                            continue;
+                        }
+                        String name = event.context().toString();
+                        if (key == gitletDirKey) {
+                            if (name.startsWith(COOKIE_PREFIX)) {
+                                cookies.add(gitletDir.resolve(name));
+                            }
+                            continue;
+                        }
+                        Path path = dirs.get(key).resolve(name);
+                        if (path.equals(gitletDir)) {
+                            continue;
+                        }
+                        boolean isDir = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+                        // 目录的 MODIFY 只是它里面的文件变了，那些文件自己会有事件
+                        if (isDir && event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+                            continue;
+                        }
+                        // 新建（或者改名进来）的目录也要监视，它在注册之前就有的内容由客户端重新看整个目录
+                        if (isDir && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                            register(watchService, path, dirs);
+                        }
+                        changed.add(workingDir.relativize(path).toString().replace(File.separatorChar, '/'));
+                    }
+                    if (!key.reset()) {
+                        // 目录被删除了（它的删除事件在上一级目录里）
+                        if (dirs.remove(key).equals(workingDir)) {
+                            exit("Working directory is no longer accessible.");
+                        }
+                    }
+                    key = watchService.poll();
+                }
+                if (overflow) {
+                    changed.add(FULL_SCAN);
+                }
+                for (String name : changed) {
+                    log.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                log.flush();
+                // 写完日志再删除 cookie，客户端看到 cookie 没了就可以读日志了
+                for (Path cookie : cookies) {
+                    Files.deleteIfExists(cookie);
+                }
+                if (LOG_FILE.length() > MAX_LOG_SIZE) {
+                    log.close();
+                    log = startLog();
+                }
+            }
+        }
+    }
+
+    // 注册 dir 和它下面的所有目录（.gitlet 除外）
+    private static void register(WatchService watchService, Path dir, Map<WatchKey, Path> dirs) throws IOException {
+        Path gitletDir = Repository.GITLET_DIR.toPath();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+                if (subDir.equals(gitletDir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                dirs.put(subDir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), subDir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            // 刚建好就被删掉的目录，忽略
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException excp) {
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    // 重新开始日志：新的 id，并要求完整扫描（监视器启动之前的变化不知道）
+    private static OutputStream startLog() throws IOException {
+        OutputStream log = new FileOutputStream(LOG_FILE);
+        String id = Long.toHexString(System.nanoTime()) + Long.toHexString(Double.doubleToLongBits(Math.random()));
+        log.write((id + "\n" + FULL_SCAN + "\n").getBytes(StandardCharsets.UTF_8));
+        log.flush();
+        return log;
+    }
+
+    /**
+     * 根据 token 读出上次以来有变化的文件
+     * @param token 上次读到的位置（监视器 id:日志位置），没有就是空串
+     * @return 结果：有变化的路径（文件或目录，为 null 表示需要完整扫描）和新的 token（监视器没有运行时为空串）
+     */
+    public static Changes getChanges(String token) {
+        if (!isRunning() || !sync()) {
+            return new Changes(null, "");
+        }
+        try (RandomAccessFile log = new RandomAccessFile(LOG_FILE, "r")) {
+            String id = log.readLine();
+            long length = log.length();
+            if (id == null) {
+                return new Changes(null, "");
+            }
+            int separator = token.lastIndexOf(':');
+            boolean sameRun = separator >= 0 && token.substring(0, separator).equals(id);
+            long start = sameRun ? Long.parseLong(token.substring(separator + 1)) : log.getFilePointer();
+            if (start > length) {
+                return new Changes(null, "");
+            }
+            // 只读完整的行（监视器可能正在写）
+            byte[] bytes = new byte[(int) (length - start)];
+            log.seek(start);
+            log.readFully(bytes);
+            int end = bytes.length;
+            while (end > 0 && bytes[end - 1] != '\n') {
+                end--;
+            }
+            String newToken = id + ":" + (start + end);
+            Set<String> changed = new HashSet<>();
+            for (String name : new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n")) {
+                if (name.equals(FULL_SCAN)) {
+                    return new Changes(null, newToken);
+                }
+                if (!name.isEmpty()) {
+                    changed.add(join(Repository.CWD, name).getPath());
+                }
+            }
+            return new Changes(sameRun ? changed : null, newToken);
+        } catch (IOException | NumberFormatException excp) {
+            return new Changes(null, "");
+        }
+    }
+
+    // 监视器是否在运行：拿得到锁说明没有
+    private static boolean isRunning() {
+        if (!LOCK_FILE.exists()) {
+            return false;
+        }
+        try (RandomAccessFile lockFile = new RandomAccessFile(LOCK_FILE, "rw");
+             FileChannel lockChannel = lockFile.getChannel();
+             FileLock lock = lockChannel.tryLock()) {
+            return lock == null;
+        } catch (IOException | OverlappingFileLockException excp) {
+            return false;
+        }
+    }
+
+    // 创建 cookie 并等监视器处理它，超时返回 false
+    private static boolean sync() {
+        File cookie = join(Repository.GITLET_DIR, COOKIE_PREFIX + System.nanoTime());
+        try {
+            if (!cookie.createNewFile()) {
+                return false;
+            }
+            long deadline = System.currentTimeMillis() + COOKIE_TIMEOUT;
+            while (cookie.exists()) {
+                if (System.currentTimeMillis() > deadline) {
+                    cookie.delete();
+                    return false;
+                }
+                Thread.sleep(1);
+            }
+            return true;
+        } catch (IOException | InterruptedException excp) {
+            cookie.delete();
+            return false;
+        }
+    }
+
+    /**
+     * 读日志的结果
+     */
+    public static class Changes {
+        // 有变化的路径（文件或目录），为 null 表示需要完整扫描
+        private final Set<String> paths;
+        // 新的 token
+        private final String token;
+
+        Changes(Set<String> paths, String token) {
+            this.paths = paths;
+            this.token = token;
+        }
+
+        public Set<String> getPaths() {
+            return paths;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+}
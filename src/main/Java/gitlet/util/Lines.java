@@ -0,0 +1,123 @@
+package gitlet.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 按行切分的文件内容：只记录每行在原始字节里的起始位置，不复制、不解码成 String
+ * 每行包括结尾的 '\n'，最后一行可能没有 '\n'
+ */
+public class Lines {
+
+    // 前 8000 个字节里有 0 就当作二进制文件（和 git 的判断一样）
+    public static final int BINARY_CHECK_LENGTH = 8000;
+
+    private final byte[] content;
+    // 第 i 行是 [starts[i], starts[i + 1])，共 size + 1 项
+    private final int[] starts;
+    private final int size;
+
+    public Lines(byte[] content) {
+        this.content = content;
+        int count = 0;
+        for (byte b : content) {
+            if (b == '\n') {
+                count++;
+            }
+        }
+        boolean endsWithNewline = content.length == 0 || content[content.length - 1] == '\n';
+        size = endsWithNewline ? count : count + 1;
+        starts = new int[size + 1];
+        int line = 1;
+        for (int i = 0; i < content.length && line < size; i++) {
+            if (content[i] == '\n') {
+                starts[line++] = i + 1;
+            }
+        }
+        starts[size] = content.length;
+    }
+
+    // 行数
+    public int size() {
+        return size;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    // 是否像是二进制文件
+    public boolean isBinary() {
+        return isBinary(content, content.length);
+    }
+
+    /**
+     * 内容的开头是否像是二进制文件（只看前 BINARY_CHECK_LENGTH 个字节）
+     * @param head   内容的开头
+     * @param length head 里有效的字节数
+     * @return 是否像是二进制文件
+     */
+    public static boolean isBinary(byte[] head, int length) {
+        int end = Math.min(length, BINARY_CHECK_LENGTH);
+        for (int i = 0; i < end; i++) {
+            if (head[i] == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 第 i 行的哈希（FNV-1a）
+    public int hash(int i) {
+        int h = 0x811c9dc5;
+        for (int p = starts[i]; p < starts[i + 1]; p++) {
+            h = (h ^ (content[p] & 0xFF)) * 0x01000193;
+        }
+        return h;
+    }
+
+    /**
+     * 第 i 行和 other 的第 j 行内容是否一样
+     * @param i     这边的行号（从 0 开始）
+     * @param other 另一边
+     * @param j     另一边的行号
+     * @return 是否一样
+     */
+    public boolean lineEquals(int i, Lines other, int j) {
+        int length = starts[i + 1] - starts[i];
+        if (length != other.starts[j + 1] - other.starts[j]) {
+            return false;
+        }
+        for (int p = 0; p < length; p++) {
+            if (content[starts[i] + p] != other.content[other.starts[j] + p]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 第 i 行是否以 '\n' 结尾（只有最后一行可能没有）
+    public boolean hasNewline(int i) {
+        return starts[i + 1] > starts[i] && content[starts[i + 1] - 1] == '\n';
+    }
+
+    /**
+     * 把 [from, to) 行原样写出
+     * @param out  输出流
+     * @param from 起始行
+     * @param to   结束行（不包括）
+     */
+    public void writeLines(OutputStream out, int from, int to) throws IOException {
+        out.write(content, starts[from], starts[to] - starts[from]);
+    }
+
+    /**
+     * 写出第 i 行，不包括结尾的 '\n'
+     * @param out 输出流
+     * @param i   行号
+     */
+    public void writeLine(OutputStream out, int i) throws IOException {
+        int length = starts[i + 1] - starts[i];
+        out.write(content, starts[i], hasNewline(i) ? length - 1 : length);
+    }
+}
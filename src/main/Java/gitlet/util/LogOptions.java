@@ -0,0 +1,106 @@
+package gitlet.util;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import static gitlet.util.MyUtils.exit;
+
+/**
+ * log 和 global-log 的选项：
+ * -n [count]       最多打印多少个 commit
+ * --skip [count]   跳过前面多少个（在日期过滤之后）
+ * --since [date]   只打印这个时间之后的，遇到更早的 commit 就停止遍历
+ * --until [date]   只打印这个时间之前的
+ * 日期格式：yyyy-MM-dd、yyyy-MM-dd HH:mm 或 yyyy-MM-dd HH:mm:ss（本地时间）
+ */
+public class LogOptions {
+
+    private static final String[] DATE_FORMATS = {"yyyy-MM-dd HH:mm:ss", "yyyy-MM-dd HH:mm", "yyyy-MM-dd"};
+
+    // 最多打印的个数，-1 表示不限
+    private int maxCount = -1;
+    private int skip;
+    // 时间范围（毫秒，包含两端）
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+
+    /**
+     * 解析命令行选项，格式不对时退出
+     * @param args 命令行参数
+     * @param from 选项开始的位置
+     * @return LogOptions
+     */
+    public static LogOptions parse(String[] args, int from) {
+        LogOptions options = new LogOptions();
+        for (int i = from; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                exit("Incorrect operands.");
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-n":
+                    options.maxCount = parseCount(value);
+                    break;
+                case "--skip":
+                    options.skip = parseCount(value);
+                    break;
+                case "--since":
+                    options.since = parseDate(value);
+                    break;
+                case "--until":
+                    options.until = parseDate(value);
+                    break;
+                default:
+                    exit("Incorrect operands.");
+            }
+        }
+        return options;
+    }
+
+    private static int parseCount(String value) {
+        try {
+            int count = Integer.parseInt(value);
+            if (count >= 0) {
+                return count;
+            }
+        } catch (NumberFormatException excp) {
+            // 下面统一退出
+        }
+        exit("Invalid count: %s", value);
+        return 0;
+    }
+
+    private static long parseDate(String value) {
+        for (String format : DATE_FORMATS) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+            dateFormat.setLenient(false);
+            try {
+                if (value.length() == format.length()) {
+                    return dateFormat.parse(value).getTime();
+                }
+            } catch (ParseException excp) {
+                // 试下一种格式
+            }
+        }
+        exit("Invalid date: %s", value);
+        return 0;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public int getSkip() {
+        return skip;
+    }
+
+    // 比 --since 更早
+    public boolean isTooOld(long time) {
+        return time < since;
+    }
+
+    // 比 --until 更晚
+    public boolean isTooNew(long time) {
+        return time > until;
+    }
+}
@@ -0,0 +1,119 @@
+package gitlet.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * 逐行的三方合并（diff3）：分别比较共同祖先和两边，得到两边各自的修改，
+ * 按在祖先里的位置从前往后看：只有一边改了的地方取那一边，两边改的一样取任意一边，
+ * 两边的修改重叠（或者紧挨着）且不一样时才是冲突，只在这一段的两边内容外面加冲突标记
+ */
+public class Merge3 {
+
+    private static final byte[] OURS_MARKER = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS_MARKER = ">>>>>>>".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 合并并写出结果
+     * @param base   共同祖先的内容
+     * @param ours   当前分支的内容
+     * @param theirs 要合并进来的分支的内容
+     * @param out    输出流
+     * @return 是否有冲突
+     */
+    public static boolean merge(Lines base, Lines ours, Lines theirs, OutputStream out) throws IOException {
+        List<Diff.Edit> oursEdits = Diff.diff(base, ours);
+        List<Diff.Edit> theirsEdits = Diff.diff(base, theirs);
+        boolean conflict = false;
+        // 两边的行号减去祖先的行号（处理到当前位置为止）
+        int oursDelta = 0;
+        int theirsDelta = 0;
+        // 祖先里已经输出到哪一行
+        int pos = 0;
+        int i = 0;
+        int j = 0;
+        while (i < oursEdits.size() || j < theirsEdits.size()) {
+            // 从祖先里位置最靠前的修改开始，把和它重叠的修改（包括另一边的）都合进这一段
+            boolean oursFirst = j == theirsEdits.size()
+                    || (i < oursEdits.size() && oursEdits.get(i).getBeginA() <= theirsEdits.get(j).getBeginA());
+            Diff.Edit first = oursFirst ? oursEdits.get(i) : theirsEdits.get(j);
+            int low = first.getBeginA();
+            int high = first.getEndA();
+            int firstOurs = i;
+            int firstTheirs = j;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                while (i < oursEdits.size() && oursEdits.get(i).getBeginA() <= high
+                        && (i == firstOurs || oursEdits.get(i).getBeginA() < high)) {
+                    high = Math.max(high, oursEdits.get(i).getEndA());
+                    i++;
+                    grown = true;
+                }
+                while (j < theirsEdits.size() && theirsEdits.get(j).getBeginA() <= high
+                        && (j == firstTheirs || theirsEdits.get(j).getBeginA() < high)) {
+                    high = Math.max(high, theirsEdits.get(j).getEndA());
+                    j++;
+                    grown = true;
+                }
+            }
+            // 这一段之前两边都没改，照抄祖先
+            base.writeLines(out, pos, low);
+            // 这一段在两边对应的范围
+            int oursBegin = low + oursDelta;
+            int theirsBegin = low + theirsDelta;
+            if (i > firstOurs) {
+                Diff.Edit last = oursEdits.get(i - 1);
+                oursDelta = last.getEndB() - last.getEndA();
+            }
+            if (j > firstTheirs) {
+                Diff.Edit last = theirsEdits.get(j - 1);
+                theirsDelta = last.getEndB() - last.getEndA();
+            }
+            int oursEnd = high + oursDelta;
+            int theirsEnd = high + theirsDelta;
+            if (j == firstTheirs) {
+                ours.writeLines(out, oursBegin, oursEnd);
+            } else if (i == firstOurs || sameLines(ours, oursBegin, oursEnd, theirs, theirsBegin, theirsEnd)) {
+                theirs.writeLines(out, theirsBegin, theirsEnd);
+            } else {
+                conflict = true;
+                out.write(OURS_MARKER);
+                writeRegion(out, ours, oursBegin, oursEnd);
+                out.write(SEPARATOR);
+                writeRegion(out, theirs, theirsBegin, theirsEnd);
+                out.write(THEIRS_MARKER);
+                // 冲突在文件末尾时结束标记后面不换行（和整个文件冲突时的格式一样）
+                if (high < base.size()) {
+                    out.write('\n');
+                }
+            }
+            pos = high;
+        }
+        base.writeLines(out, pos, base.size());
+        return conflict;
+    }
+
+    private static boolean sameLines(Lines a, int beginA, int endA, Lines b, int beginB, int endB) {
+        if (endA - beginA != endB - beginB) {
+            return false;
+        }
+        for (int k = 0; k < endA - beginA; k++) {
+            if (!a.lineEquals(beginA + k, b, beginB + k)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 冲突里一边的内容，最后一行没有换行时补上（标记要从新的一行开始）
+    private static void writeRegion(OutputStream out, Lines text, int from, int to) throws IOException {
+        text.writeLines(out, from, to);
+        if (to > from && !text.hasNewline(to - 1)) {
+            out.write('\n');
+        }
+    }
+}
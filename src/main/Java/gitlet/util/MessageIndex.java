@@ -0,0 +1,286 @@
+package gitlet.util;
+
+import gitlet.Repository;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.util.Utils.join;
+import static gitlet.util.Utils.sha1;
+
+/**
+ * commit message 的索引：find 直接查索引，只需要读出匹配的 commit，不用遍历所有的 commit
+ * 'G' 'M' 'I' 'X' + 版本号(4字节) + 排好序的项数(4字节) + 索引过的 commit 数(4字节) + 若干项
+ * 每项定长 28 字节：key(8字节) + commit id(20字节)
+ * key 是 SHA1 的前 8 个字节：整个 message 的 key 由 "message" + message 算出，每个 commit 正好一项；
+ * message 里的每个词（字母数字组成，转成小写）的 key 由 "word" + 词 算出
+ * 不同的内容可能算出同一个 key，查出来的只是候选，调用方要读出 commit 核对
+ * 前面 sortedCount 项按 key 排好序（二分查找），后面是 commit 时追加的项（顺序查找），追加的项太多了就整个重写
+ */
+public class MessageIndex {
+
+    public static final File INDEX_FILE = join(Repository.GITLET_DIR, "message-index");
+
+    static final byte[] MAGIC = {'G', 'M', 'I', 'X'};
+    static final int VERSION = 1;
+    // 文件头：魔数4 + 版本4 + 排好序的项数4 + commit 数4
+    static final int HEADER_LENGTH = 16;
+    // 每项：key8 + id20
+    static final int ENTRY_LENGTH = 8 + ObjectCodec.ID_BYTES;
+    // 追加的项超过这么多就整个重写排序
+    private static final int MAX_TAIL = 4096;
+    private static final String MESSAGE_KEY_PREFIX = "message";
+    private static final String WORD_KEY_PREFIX = "word";
+
+    // 当前进程里的索引（flush 之后重新加载）
+    private static MessageIndex index;
+
+    private final ByteBuffer buffer;
+    private final int sortedCount;
+    private final int count;
+    private final int commitCount;
+    // 还没写进文件的项和 commit 数
+    private final List<ByteBuffer> pending = new ArrayList<>();
+    private int pendingCommits;
+
+    private MessageIndex(ByteBuffer buffer, int sortedCount, int count, int commitCount) {
+        this.buffer = buffer;
+        this.sortedCount = sortedCount;
+        this.count = count;
+        this.commitCount = commitCount;
+    }
+
+    /**
+     * 当前进程里的索引，文件不存在或者损坏时是空的
+     * @return MessageIndex
+     */
+    public static MessageIndex get() {
+        if (index == null) {
+            index = load();
+        }
+        return index;
+    }
+
+    private static MessageIndex load() {
+        MessageIndex empty = new MessageIndex(ByteBuffer.allocate(0), 0, 0, 0);
+        if (!INDEX_FILE.exists()) {
+            return empty;
+        }
+        try (FileChannel channel = FileChannel.open(INDEX_FILE.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                return empty;
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buffer.get(i) != MAGIC[i]) {
+                    return empty;
+                }
+            }
+            int count = (int) ((size - HEADER_LENGTH) / ENTRY_LENGTH);
+            int sortedCount = buffer.getInt(8);
+            if (buffer.getInt(4) != VERSION || sortedCount < 0 || sortedCount > count) {
+                return empty;
+            }
+            return new MessageIndex(buffer, sortedCount, count, buffer.getInt(12));
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // 删除索引文件（下次用到时重建）
+    public static void delete() {
+        if (INDEX_FILE.exists() && !INDEX_FILE.delete()) {
+            throw new IllegalArgumentException("rm: " + INDEX_FILE.getPath() + ": Failed to delete.");
+        }
+        index = null;
+    }
+
+    // 索引过的 commit 数
+    public int getCommitCount() {
+        return commitCount + pendingCommits;
+    }
+
+    /**
+     * 补全索引之后，记下已经处理过的 commit 数（对象已经不在了的 commit 没有索引，但也算处理过）
+     * @param commitCount commit-graph 里的 commit 数
+     */
+    public void setCommitCount(int commitCount) {
+        pendingCommits = commitCount - this.commitCount;
+    }
+
+    /**
+     * message 可能正好是 message 的 commit
+     * @param message commit message
+     * @return 候选的 commit id
+     */
+    public List<String> lookupMessage(String message) {
+        return lookup(key(MESSAGE_KEY_PREFIX, message));
+    }
+
+    /**
+     * message 里可能有 word 这个词的 commit（不区分大小写）
+     * @param word 词
+     * @return 候选的 commit id
+     */
+    public List<String> lookupWord(String word) {
+        return lookup(key(WORD_KEY_PREFIX, word.toLowerCase(Locale.ROOT)));
+    }
+
+    // 所有索引过的 commit（每个 commit 正好有一项 message 的 key，但不知道是哪一项，所以取所有的 id）
+    public Set<String> getCommitIds() {
+        Set<String> commitIds = new HashSet<>();
+        for (int pos = 0; pos < count + pending.size(); pos++) {
+            commitIds.add(getId(pos));
+        }
+        return commitIds;
+    }
+
+    /**
+     * 加入一个 commit（调用 flush 之后才写进文件）
+     * @param commitId commit id
+     * @param message  commit message
+     */
+    public void add(String commitId, String message) {
+        addEntry(key(MESSAGE_KEY_PREFIX, message), commitId);
+        for (String word : tokenize(message)) {
+            addEntry(key(WORD_KEY_PREFIX, word), commitId);
+        }
+        pendingCommits++;
+    }
+
+    // message 里不重复的词（字母数字组成，转成小写）
+    public static Set<String> tokenize(String message) {
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : message.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private void addEntry(long key, String commitId) {
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_LENGTH);
+        entry.putLong(key);
+        entry.put(ObjectCodec.idToBytes(commitId));
+        pending.add(entry);
+    }
+
+    private static long key(String prefix, String text) {
+        return Long.parseUnsignedLong(sha1(prefix, text).substring(0, 16), 16);
+    }
+
+    private ByteBuffer entryBuffer(int pos) {
+        return pos < count ? buffer : pending.get(pos - count);
+    }
+
+    private int entryBase(int pos) {
+        return pos < count ? HEADER_LENGTH + pos * ENTRY_LENGTH : 0;
+    }
+
+    private long getKey(int pos) {
+        return entryBuffer(pos).getLong(entryBase(pos));
+    }
+
+    private String getId(int pos) {
+        ByteBuffer entry = entryBuffer(pos);
+        int base = entryBase(pos) + 8;
+        byte[] id = new byte[ObjectCodec.ID_BYTES];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = entry.get(base + i);
+        }
+        return ObjectCodec.bytesToId(id);
+    }
+
+    // key 对应的所有 commit id
+    private List<String> lookup(long key) {
+        List<String> result = new ArrayList<>();
+        // 排好序的部分：二分找到第一个 >= key 的项，往后取
+        int low = 0;
+        int high = sortedCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (getKey(mid) < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        for (int pos = low; pos < sortedCount && getKey(pos) == key; pos++) {
+            result.add(getId(pos));
+        }
+        // 追加的部分和还没写的部分顺序查找
+        for (int pos = sortedCount; pos < count + pending.size(); pos++) {
+            if (getKey(pos) == key) {
+                result.add(getId(pos));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 把新加入的项写进文件：追加在后面，追加的项太多了就整个重写
+     */
+    public void flush() {
+        if (pending.isEmpty() && pendingCommits == 0) {
+            return;
+        }
+        try {
+            if (count == 0 || count - sortedCount + pending.size() > MAX_TAIL) {
+                rewrite();
+            } else {
+                try (RandomAccessFile out = new RandomAccessFile(INDEX_FILE, "rw")) {
+                    out.seek(HEADER_LENGTH + (long) count * ENTRY_LENGTH);
+                    for (ByteBuffer entry : pending) {
+                        out.write(entry.array());
+                    }
+                    // 项写完了再更新 commit 数，中途失败的话下次会发现 commit 数不对，补上缺的 commit
+                    out.seek(12);
+                    out.writeInt(getCommitCount());
+                }
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        index = null;
+    }
+
+    // 按 key 排序后整个重写（先写临时文件再改名）
+    private void rewrite() throws IOException {
+        int total = count + pending.size();
+        long[] keys = new long[total];
+        byte[][] entries = new byte[total][];
+        for (int pos = 0; pos < total; pos++) {
+            ByteBuffer entry = entryBuffer(pos);
+            int base = entryBase(pos);
+            entries[pos] = new byte[ENTRY_LENGTH];
+            for (int i = 0; i < ENTRY_LENGTH; i++) {
+                entries[pos][i] = entry.get(base + i);
+            }
+            keys[pos] = getKey(pos);
+        }
+        Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(pos -> keys[pos]));
+        File tmp = join(Repository.GITLET_DIR, INDEX_FILE.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(total);
+            out.writeInt(getCommitCount());
+            for (int pos : order) {
+                out.write(entries[pos]);
+            }
+        }
+        Files.move(tmp.toPath(), INDEX_FILE.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -7,9 +7,15 @@ import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
 import java.util.Formatter;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
 
 import static gitlet.util.Utils.*;
@@ -17,39 +23,117 @@ import static gitlet.util.Utils.*;
 
 public class MyUtils {
 
+    // 并行任务共用的线程池（线程数见 Config.CORE_PARALLELISM）
+    private static final Lazy<ForkJoinPool> pool = lazy(() -> new ForkJoinPool(getParallelism()));
+
     /**
-     * ݴfile󴴽Ŀ¼
-     * @param dir ҪĿ¼
+     * 根据传入的file对象创建目录
+     * @param dir 要创建的目录
      */
     public static void mkdir(File dir) {
-        // Դ
+        // 尝试创建
         if (!dir.mkdir()) {
-            // ʧܾͱ
+            // 创建失败就报错
             throw new IllegalArgumentException(String.format("mkdir: %s: Failed to create.", dir.getPath()));
         }
     }
 
 
     /**
-     * ʵлдļ
-     * @param file Ҫдļ·
-     * @param obj  ҪлĶ
+     * 实例方法：将对象编码后写入文件
+     * @param file 要写入的文件路径
+     * @param obj  要编码的对象
+     */
+    public static void saveObjectFile(File file, Encodable obj) {
+        // 把编码后的对象按配置的等级压缩，写入文件（在写事务中时先写临时文件，见 WriteTransaction）
+        WriteTransaction.writeObject(file, ObjectCodec.compress(ObjectCodec.encode(obj), Config.getCompressionLevel()));
+    }
+
+    /**
+     * 把对象（打包的）流式写成松散对象，已经有松散对象就什么都不做
+     * @param id SHA1 id
      */
-    public static void saveObjectFile(File file, Serializable obj) {
-        // ȡ·ڲ
+    public static void saveLooseObject(String id) {
+        File file = getObjectFile(id);
+        if (file.exists()) {
+            return;
+        }
         File dir = file.getParentFile();
         if (!dir.exists()) {
             mkdir(dir);
         }
-        // лдļ
-        writeObject(file, obj);
+        try {
+            File tmpFile = File.createTempFile("tmp_obj_", null, dir);
+            try (ObjectStream in = ObjectStream.open(id);
+                 OutputStream fileOut = new BufferedOutputStream(new FileOutputStream(tmpFile));
+                 OutputStream out = ObjectCodec.openOutput(fileOut, in.getType(), in.getVersion(),
+                         in.getLength(), Config.getCompressionLevel())) {
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 根据 id 读取对象：先查 pack，再查松散对象
+     * @param id            SHA1 id
+     * @param type          期望的类型标记
+     * @param expectedClass 期望的类
+     * @param decoder       负载解码函数
+     * @return 对象
+     */
+    public static <T extends Serializable> T loadObject(String id, byte type, Class<T> expectedClass,
+                                                        ObjectCodec.Decoder<T> decoder) {
+        return ObjectCodec.decode(readObjectBytes(id), type, decoder, expectedClass);
     }
 
+    /**
+     * 根据 id 读取对象的编码结果（已经解压），先查 pack，再查松散对象
+     * @param id SHA1 id
+     * @return 编码结果（旧仓库的对象是 Java 序列化的字节）
+     */
+    public static byte[] readObjectBytes(String id) {
+        byte[] bytes = PackFile.readPacked(id);
+        if (bytes != null) {
+            return bytes;
+        }
+        return ObjectCodec.decompress(readContents(getObjectFile(id)));
+    }
 
     /**
-     * Objectļݴidǰ2λΪļУ漸λΪļӦobjectļ
-     * @param id SHA1id
-     * @return Objectļ
+     * 对象是否存在（打包的或者松散的）
+     * @param id SHA1 id
+     * @return true if exists
+     */
+    public static boolean objectExists(String id) {
+        return PackFile.containsPacked(id) || getObjectFile(id).exists();
+    }
+
+    /**
+     * 从文件读取对象（压缩的先解压，新格式用 decoder 解码，旧的 Java 序列化格式也能读）
+     * @param file          对象文件
+     * @param type          期望的类型标记
+     * @param expectedClass 期望的类
+     * @param decoder       负载解码函数
+     * @return 对象
+     */
+    public static <T extends Serializable> T readObjectFile(File file, byte type, Class<T> expectedClass,
+                                                            ObjectCodec.Decoder<T> decoder) {
+        byte[] bytes = ObjectCodec.decompress(readContents(file));
+        return ObjectCodec.decode(bytes, type, decoder, expectedClass);
+    }
+
+
+    /**
+     * 创建Object文件，根据传入的id，前面2位为文件夹，后面几位为文件名，创建对应的object文件
+     * @param id SHA1的id
+     * @return 创建的Object文件
      */
     public static File getObjectFile(String id) {
         String dirName = getObjectDirName(id);
@@ -82,6 +166,31 @@ public class MyUtils {
         System.exit(0);
     }
 
+    // 配置的并行线程数，至少为 1
+    public static int getParallelism() {
+        return Math.max(1, Config.getInt(Config.CORE_PARALLELISM, Runtime.getRuntime().availableProcessors()));
+    }
+
+    // 在共用的线程池里执行一个任务
+    public static <T> Future<T> submit(Callable<T> task) {
+        return pool.get().submit(task);
+    }
+
+    /**
+     * 在共用的线程池里并行处理每一个元素（parallel stream 在哪个 ForkJoinPool 里提交就用哪个池的线程），
+     * 处理完才返回；action 要能被多个线程同时调用
+     * @param items  要处理的元素
+     * @param action 处理函数
+     * @param <T>    Type of the items
+     */
+    public static <T> void parallelForEach(Collection<T> items, Consumer<? super T> action) {
+        if (items.size() < 2 || getParallelism() == 1) {
+            items.forEach(action);
+            return;
+        }
+        pool.get().submit(() -> items.parallelStream().forEach(action)).join();
+    }
+
     /**
      * Get a lazy initialized value.
      * @param delegate Function to get the value
@@ -93,12 +202,27 @@ public class MyUtils {
     }
 
     /**
-     * Tells if the deserialized object instance of given class.
+     * Tells if the object file holds an object of given type.
+     * Only the header is read for new objects; legacy objects are deserialized.
      * @param file File instance
-     * @param c    Target class
+     * @param type Target type tag
+     * @param c    Target class (for legacy objects)
      * @return true if is instance
      */
-    public static boolean isFileInstanceOf(File file, Class<?> c) {
+    public static boolean isFileInstanceOf(File file, byte type, Class<?> c) {
+        byte[] header;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            header = ObjectCodec.readHeader(in);
+        } catch (IOException ignored) {
+            return false;
+        }
+        if (!ObjectCodec.isLegacy(header)) {
+            try {
+                return ObjectCodec.getType(header) == type;
+            } catch (IllegalArgumentException ignored) {
+                return false;
+            }
+        }
         try (ObjectInputStream in = new ObjectInputStream(new FileInputStream(file))) {
             return c.isInstance(in.readObject());
         } catch (Exception ignored) {
@@ -0,0 +1,338 @@
+package gitlet.util;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.util.Utils.UID_LENGTH;
+
+/**
+ * gitlet 对象的二进制编解码，取代 ObjectOutputStream：
+ * 魔数('G' 'L') + 版本号(1字节) + 类型标记(1字节) + 负载长度(4字节) + 负载
+ * 负载里只有原始字段，没有类描述符和字段名，读取时也不需要反射。
+ * 旧仓库的对象是 Java 序列化写的（以 0xACED 开头），读取时识别出来后回退到 ObjectInputStream
+ * 松散对象文件还可以是压缩的：魔数('G' 'Z') + 整个编码结果的 zlib 流
+ */
+public class ObjectCodec {
+
+    // 文件头魔数
+    private static final byte MAGIC_0 = 'G';
+    private static final byte MAGIC_1 = 'L';
+    // 压缩对象的魔数
+    private static final byte ZMAGIC_0 = 'G';
+    private static final byte ZMAGIC_1 = 'Z';
+    // Java 序列化流的魔数 0xACED
+    private static final byte LEGACY_MAGIC_0 = (byte) 0xAC;
+    private static final byte LEGACY_MAGIC_1 = (byte) 0xED;
+    // 文件头长度：魔数2 + 版本1 + 类型1 + 长度4
+    public static final int HEADER_LENGTH = 8;
+    // SHA1 id 的原始字节长度
+    public static final int ID_BYTES = UID_LENGTH / 2;
+
+    // 类型标记
+    public static final byte TYPE_LEGACY = 0;
+    public static final byte TYPE_BLOB = 1;
+    public static final byte TYPE_COMMIT = 2;
+    public static final byte TYPE_INDEX = 3;
+    // 大文件切出来的块（见 Chunker）
+    public static final byte TYPE_CHUNK = 4;
+    // 目录的快照（见 Tree）
+    public static final byte TYPE_TREE = 5;
+
+    /**
+     * 把对象解码出来的函数
+     * @param <T> 对象类型
+     */
+    public interface Decoder<T> {
+        T decode(DataInputStream in, byte version) throws IOException;
+    }
+
+    /**
+     * 把对象编码成 文件头 + 负载
+     * @param obj 要编码的对象
+     * @return 编码后的字节
+     */
+    public static byte[] encode(Encodable obj) {
+        try {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream payloadOut = new DataOutputStream(payload);
+            obj.encode(payloadOut);
+            payloadOut.flush();
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream(HEADER_LENGTH + payload.size());
+            DataOutputStream out = new DataOutputStream(result);
+            out.writeByte(MAGIC_0);
+            out.writeByte(MAGIC_1);
+            out.writeByte(obj.getVersion());
+            out.writeByte(obj.getType());
+            out.writeInt(payload.size());
+            payload.writeTo(out);
+            out.flush();
+            return result.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 解码对象：新格式走 decoder，旧格式走 Java 反序列化
+     * @param bytes         文件内容
+     * @param type          期望的类型标记
+     * @param decoder       负载解码函数
+     * @param expectedClass 期望的类（旧格式时用来做类型转换）
+     * @return 解码后的对象
+     */
+    public static <T extends Serializable> T decode(byte[] bytes, byte type, Decoder<T> decoder,
+                                                    Class<T> expectedClass) {
+        if (isLegacy(bytes)) {
+            return decodeLegacy(bytes, expectedClass);
+        }
+        if (getType(bytes) != type) {
+            throw new IllegalArgumentException("unexpected object type");
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            // 魔数、版本、类型前面已经看过了
+            in.skipBytes(4);
+            int length = in.readInt();
+            if (length != bytes.length - HEADER_LENGTH) {
+                throw new IllegalArgumentException("corrupted object: bad length");
+            }
+            return decoder.decode(in, bytes[2]);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 读取对象的类型标记（只看文件头），旧格式返回 TYPE_LEGACY
+     * @param header 至少包含文件头的字节
+     * @return 类型标记
+     */
+    public static byte getType(byte[] header) {
+        if (isLegacy(header)) {
+            return TYPE_LEGACY;
+        }
+        if (header.length < HEADER_LENGTH || header[0] != MAGIC_0 || header[1] != MAGIC_1) {
+            throw new IllegalArgumentException("not a gitlet object");
+        }
+        return header[3];
+    }
+
+    /**
+     * 读取对象文件的文件头，压缩的对象只解压文件头这一小段
+     * @param in 对象文件的输入流
+     * @return 编码结果的文件头（旧格式只有魔数2字节）
+     */
+    public static byte[] readHeader(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        byte[] magic = new byte[2];
+        dataIn.readFully(magic);
+        if (isLegacy(magic)) {
+            return magic;
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        if (isCompressed(magic)) {
+            dataIn = new DataInputStream(new InflaterInputStream(in));
+            dataIn.readFully(header);
+        } else {
+            header[0] = magic[0];
+            header[1] = magic[1];
+            dataIn.readFully(header, 2, HEADER_LENGTH - 2);
+        }
+        return header;
+    }
+
+    /**
+     * 压缩编码结果，level 为 0 时不压缩，原样返回
+     * @param encoded 编码后的字节
+     * @param level   压缩等级
+     * @return 写入对象文件的字节
+     */
+    public static byte[] compress(byte[] encoded, int level) {
+        if (level == Deflater.NO_COMPRESSION) {
+            return encoded;
+        }
+        Deflater deflater = new Deflater(level);
+        try {
+            ByteArrayOutputStream result = new ByteArrayOutputStream(encoded.length / 2 + 16);
+            result.write(ZMAGIC_0);
+            result.write(ZMAGIC_1);
+            try (DeflaterOutputStream out = new DeflaterOutputStream(result, deflater)) {
+                out.write(encoded);
+            }
+            return result.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * 以流的方式写对象（和 compress(encode(obj), level) 的结果一样）：写好文件头后返回负载的输出流，
+     * 调用方写完 length 字节的负载后关闭它
+     * @param out     对象文件的输出流
+     * @param type    类型标记
+     * @param version 负载格式版本
+     * @param length  负载长度
+     * @param level   压缩等级
+     * @return 负载的输出流
+     */
+    public static OutputStream openOutput(OutputStream out, byte type, byte version, int length, int level)
+            throws IOException {
+        OutputStream payloadOut = out;
+        if (level != Deflater.NO_COMPRESSION) {
+            out.write(ZMAGIC_0);
+            out.write(ZMAGIC_1);
+            Deflater deflater = new Deflater(level);
+            payloadOut = new DeflaterOutputStream(out, deflater) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        deflater.end();
+                    }
+                }
+            };
+        }
+        DataOutputStream headerOut = new DataOutputStream(payloadOut);
+        headerOut.writeByte(MAGIC_0);
+        headerOut.writeByte(MAGIC_1);
+        headerOut.writeByte(version);
+        headerOut.writeByte(type);
+        headerOut.writeInt(length);
+        return payloadOut;
+    }
+
+    /**
+     * 解压对象文件的内容，没有压缩的（新格式或旧格式）原样返回
+     * @param bytes 对象文件的内容
+     * @return 编码结果
+     */
+    public static byte[] decompress(byte[] bytes) {
+        if (!isCompressed(bytes)) {
+            return bytes;
+        }
+        try (DataInputStream in = new DataInputStream(new InflaterInputStream(
+                new ByteArrayInputStream(bytes, 2, bytes.length - 2)))) {
+            // 先解出文件头拿到负载长度，再一次性分配
+            byte[] header = new byte[HEADER_LENGTH];
+            in.readFully(header);
+            int length = ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16)
+                    | ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+            byte[] encoded = new byte[HEADER_LENGTH + length];
+            System.arraycopy(header, 0, encoded, 0, HEADER_LENGTH);
+            in.readFully(encoded, HEADER_LENGTH, length);
+            return encoded;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // 是否是压缩过的对象
+    public static boolean isCompressed(byte[] header) {
+        return header.length >= 2 && header[0] == ZMAGIC_0 && header[1] == ZMAGIC_1;
+    }
+
+    // 是否是 Java 序列化写的旧对象
+    public static boolean isLegacy(byte[] header) {
+        return header.length >= 2 && header[0] == LEGACY_MAGIC_0 && header[1] == LEGACY_MAGIC_1;
+    }
+
+    // 旧格式：用 ObjectInputStream 反序列化
+    private static <T extends Serializable> T decodeLegacy(byte[] bytes, Class<T> expectedClass) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return expectedClass.cast(in.readObject());
+        } catch (IOException | ClassCastException | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /* 负载字段的读写 */
+
+    // 写入字符串：长度前缀 + UTF-8 字节（writeUTF 有 64KB 的限制，commit message 可能更长）
+    public static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    // 写入字节数组：长度前缀 + 原始字节
+    public static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    // 变长整数：每个字节低 7 位有效，最高位表示后面还有
+    public static void writeVarint(OutputStream out, long v) {
+        try {
+            while ((v & ~0x7FL) != 0) {
+                out.write((int) ((v & 0x7F) | 0x80));
+                v >>>= 7;
+            }
+            out.write((int) v);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 读取变长整数
+     * @param bytes 字节数组
+     * @param pos   读取的位置，读完后更新为下一个位置
+     * @return 整数
+     */
+    public static long readVarint(byte[] bytes, int[] pos) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = bytes[pos[0]++];
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    // 写入 SHA1 id：40位十六进制 => 20字节
+    public static void writeId(DataOutputStream out, String id) throws IOException {
+        out.write(idToBytes(id));
+    }
+
+    public static String readId(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[ID_BYTES];
+        in.readFully(bytes);
+        return bytesToId(bytes);
+    }
+
+    // 十六进制 id 转为原始字节
+    public static byte[] idToBytes(String id) {
+        byte[] bytes = new byte[ID_BYTES];
+        for (int i = 0; i < ID_BYTES; i++) {
+            bytes[i] = (byte) Integer.parseInt(id.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    // 原始字节转为十六进制 id
+    public static String bytesToId(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,83 @@
+package gitlet.util;
+
+import java.io.*;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.util.MyUtils.getObjectFile;
+
+/**
+ * 以流的方式读取一个对象：打开时解析文件头，流的位置停在负载的开头
+ * 大文件的 blob 可以边读边写，不用整个读进内存
+ * 旧仓库里 Java 序列化的对象没法流式读取，打开时先反序列化再重新编码
+ */
+public class ObjectStream extends FilterInputStream {
+
+    // 文件头（魔数 + 版本 + 类型 + 长度）
+    private final byte[] header;
+
+    private ObjectStream(InputStream in) throws IOException {
+        super(in);
+        header = new byte[ObjectCodec.HEADER_LENGTH];
+        new DataInputStream(in).readFully(header);
+        // 校验魔数
+        ObjectCodec.getType(header);
+    }
+
+    /**
+     * 打开对象：先查 pack，再查松散对象
+     * @param id SHA1 id
+     * @return 停在负载开头的流
+     */
+    public static ObjectStream open(String id) {
+        try {
+            InputStream packed = PackFile.openPacked(id);
+            if (packed != null) {
+                return new ObjectStream(packed);
+            }
+            InputStream in = new BufferedInputStream(new FileInputStream(getObjectFile(id)));
+            byte[] magic = new byte[2];
+            in.mark(magic.length);
+            new DataInputStream(in).readFully(magic);
+            if (ObjectCodec.isCompressed(magic)) {
+                return new ObjectStream(new InflaterInputStream(in));
+            }
+            in.reset();
+            if (ObjectCodec.isLegacy(magic)) {
+                return new ObjectStream(new ByteArrayInputStream(ObjectCodec.encode(readLegacy(in))));
+            }
+            return new ObjectStream(in);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // 反序列化旧对象
+    private static Encodable readLegacy(InputStream in) throws IOException {
+        try (ObjectInputStream objectIn = new ObjectInputStream(in)) {
+            return (Encodable) objectIn.readObject();
+        } catch (ClassNotFoundException | ClassCastException excp) {
+            throw new IOException(excp.getMessage());
+        }
+    }
+
+    // 文件头
+    public byte[] getHeader() {
+        return header.clone();
+    }
+
+    // 类型标记
+    public byte getType() {
+        return header[3];
+    }
+
+    // 负载格式版本
+    public byte getVersion() {
+        return header[2];
+    }
+
+    // 负载长度
+    public int getLength() {
+        return ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16)
+                | ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+    }
+}
@@ -0,0 +1,572 @@
+package gitlet.util;
+
+import gitlet.Lazy;
+import gitlet.Repository;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.util.MyUtils.lazy;
+import static gitlet.util.Utils.join;
+
+/**
+ * 一个 pack 文件和它的索引（由 gc 生成，见 PackWriter）
+ * pack：'P' 'A' 'C' 'K' + 版本号(4字节) + 对象个数(4字节) + 若干对象 + SHA1 校验和(20字节)
+ *       每个对象：类型标记(1字节) + 数据长度(varint) + 数据的 zlib 流
+ *       完整对象的数据是编码结果；增量对象(TYPE_OFS_DELTA)在 zlib 流之前还有到基础对象的距离(varint)，
+ *       数据是相对基础对象的增量（见 Delta），基础对象总是在它前面
+ * idx： 'G' 'I' 'D' 'X' + 版本号(4字节) + fanout 表(256 * 4字节) + 排好序的 id(N * 20字节)
+ *       + 对应的偏移(N * 8字节) + pack 的校验和(20字节) + idx 的校验和(20字节)
+ * fanout[i] 是第一个字节 <= i 的 id 的个数，查找时先用第一个字节定位区间，再在区间里二分
+ * idx 和 pack 在每个进程里只打开一次，用 FileChannel.map 映射到内存，查找和读取都直接在映射上进行
+ * bitmap（可选，gc 时生成）：'G' 'B' 'M' 'P' + 版本号(4字节) + 个数(4字节)
+ *       + 若干（commit 在索引里的位置(4字节) + 从它可达的对象的位图(EwahBitmap)
+ *              + 从它可达、但没有打包的对象个数(4字节) + 它们的 id(每个 20字节)）
+ *       位图的第 i 位表示索引里第 i 个对象，只有选出来的一部分 commit 有位图；
+ *       超过 core.bigFileThreshold 的 blob 留在 pack 外面，不在位图里，单独列出来
+ */
+public class PackFile {
+
+    static final byte[] PACK_MAGIC = {'P', 'A', 'C', 'K'};
+    static final byte[] IDX_MAGIC = {'G', 'I', 'D', 'X'};
+    static final byte[] BITMAP_MAGIC = {'G', 'B', 'M', 'P'};
+    static final int VERSION = 1;
+    // bitmap 文件的版本（版本 1 没有列出 pack 外的对象，读到时忽略，下次 gc 时重写）
+    static final int BITMAP_VERSION = 2;
+    // pack 头：魔数4 + 版本4 + 个数4
+    static final int PACK_HEADER_LENGTH = 12;
+    // idx 头：魔数4 + 版本4
+    static final int IDX_HEADER_LENGTH = 8;
+    static final int FANOUT_SIZE = 256;
+    static final int CHECKSUM_LENGTH = 20;
+    static final int ID_BYTES = ObjectCodec.ID_BYTES;
+    // 增量对象的类型标记
+    static final byte TYPE_OFS_DELTA = 6;
+
+    // objects/pack 文件夹
+    public static final File PACK_DIR = join(Repository.OBJECTS_DIR, "pack");
+
+    // 每次交给 Inflater 的压缩数据大小
+    private static final int INFLATE_CHUNK = 8192;
+
+    // 仓库里所有的 pack（每个进程只映射一次）
+    private static final Lazy<List<PackFile>> packs = lazy(PackFile::loadPacks);
+
+    private final File packFile;
+    private final File idxFile;
+    // 映射到内存的 idx 和 pack
+    private final MappedByteBuffer idx;
+    private final MappedByteBuffer pack;
+    // 对象个数
+    private final int count;
+    // idx 里 id 表和偏移表的起始位置
+    private final int idsStart;
+    private final int offsetsStart;
+    // 可达对象的位图：commit 在索引里的位置 => 位图在 bitmap 文件里的位置（没有 bitmap 文件时为空）
+    private final Lazy<Map<Integer, Integer>> bitmapOffsets = lazy(this::loadBitmaps);
+    private ByteBuffer bitmaps;
+    // 增量基础对象的缓存：偏移 => 编码结果
+    private final DeltaBaseCache deltaBaseCache = new DeltaBaseCache(
+            Config.getInt(Config.PACK_DELTA_BASE_CACHE_LIMIT, 16 << 20));
+
+    private PackFile(File idxFile) {
+        this.idxFile = idxFile;
+        String idxName = idxFile.getName();
+        packFile = join(PACK_DIR, idxName.substring(0, idxName.length() - ".idx".length()) + ".pack");
+        try {
+            idx = map(idxFile);
+            pack = map(packFile);
+            checkMagic(idx, IDX_MAGIC, VERSION);
+            checkMagic(pack, PACK_MAGIC, VERSION);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(String.format("%s: %s", idxName, excp.getMessage()));
+        }
+        count = fanout(FANOUT_SIZE - 1);
+        idsStart = IDX_HEADER_LENGTH + FANOUT_SIZE * 4;
+        offsetsStart = idsStart + count * ID_BYTES;
+    }
+
+    /**
+     * 打开一个 pack（不加入进程里的 pack 列表，gc 写完新的 pack 后用）
+     * @param packName pack-[SHA1]
+     * @return PackFile
+     */
+    public static PackFile open(String packName) {
+        return new PackFile(join(PACK_DIR, packName + ".idx"));
+    }
+
+    // 只读映射整个文件（映射建立后就可以关闭 channel）
+    private static MappedByteBuffer map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("file too large to map");
+            }
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // 检查魔数和版本号
+    private static void checkMagic(ByteBuffer buffer, byte[] magic, int version) throws IOException {
+        for (int i = 0; i < magic.length; i++) {
+            if (buffer.get(i) != magic[i]) {
+                throw new IOException("bad pack header");
+            }
+        }
+        if (buffer.getInt(magic.length) != version) {
+            throw new IOException("bad pack version");
+        }
+    }
+
+    // fanout 表的第 i 项
+    private int fanout(int i) {
+        return idx.getInt(IDX_HEADER_LENGTH + i * 4);
+    }
+
+    // 第 index 个对象在 pack 里的偏移
+    private long offset(int index) {
+        return idx.getLong(offsetsStart + index * 8);
+    }
+
+    // 加载 pack 文件夹下所有的索引（按名字排序，保证查找顺序稳定）
+    private static List<PackFile> loadPacks() {
+        List<PackFile> result = new ArrayList<>();
+        File[] idxFiles = PACK_DIR.listFiles((dir, name) -> name.startsWith("pack-") && name.endsWith(".idx"));
+        if (idxFiles == null) {
+            return result;
+        }
+        Arrays.sort(idxFiles);
+        for (File idxFile : idxFiles) {
+            result.add(new PackFile(idxFile));
+        }
+        return result;
+    }
+
+    // 仓库里所有的 pack
+    public static List<PackFile> getPacks() {
+        return packs.get();
+    }
+
+    // 第一个有 bitmap 的 pack，没有返回 null
+    public static PackFile getBitmapPack() {
+        for (PackFile packFile : packs.get()) {
+            if (packFile.getBitmapFile().exists()) {
+                return packFile;
+            }
+        }
+        return null;
+    }
+
+    // 读出 bitmap 文件里各个位图的位置
+    private Map<Integer, Integer> loadBitmaps() {
+        Map<Integer, Integer> offsets = new HashMap<>();
+        File bitmapFile = getBitmapFile();
+        if (!bitmapFile.exists()) {
+            return offsets;
+        }
+        try {
+            bitmaps = map(bitmapFile);
+            // 旧版本的位图不知道哪些可达的对象在 pack 外面，当作没有位图
+            if (bitmaps.getInt(BITMAP_MAGIC.length) < BITMAP_VERSION) {
+                return offsets;
+            }
+            checkMagic(bitmaps, BITMAP_MAGIC, BITMAP_VERSION);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(String.format("%s: %s", bitmapFile.getName(), excp.getMessage()));
+        }
+        int size = bitmaps.getInt(BITMAP_MAGIC.length + 4);
+        int pos = BITMAP_MAGIC.length + 8;
+        for (int i = 0; i < size; i++) {
+            offsets.put(bitmaps.getInt(pos), pos + 4);
+            pos += 4 + EwahBitmap.length(bitmaps, pos + 4);
+            pos += 4 + bitmaps.getInt(pos) * ID_BYTES;
+        }
+        return offsets;
+    }
+
+    /**
+     * 从 commit 可达的所有对象（位图的第 i 位表示索引里第 i 个对象）
+     * @param commitId commit id
+     * @return 位图，这个 commit 没有位图时返回 null
+     */
+    public BitSet getBitmap(String commitId) {
+        int index = find(ObjectCodec.idToBytes(commitId));
+        if (index < 0) {
+            return null;
+        }
+        Integer offset = bitmapOffsets.get().get(index);
+        return offset == null ? null : EwahBitmap.read(bitmaps, offset);
+    }
+
+    /**
+     * 从 commit 可达、但不在 pack 里的对象（大文件的 blob），和 getBitmap 一起才是所有可达的对象
+     * @param commitId 有位图的 commit id
+     * @return 对象 id，这个 commit 没有位图时为空
+     */
+    public List<String> getBitmapLooseIds(String commitId) {
+        List<String> looseIds = new ArrayList<>();
+        int index = find(ObjectCodec.idToBytes(commitId));
+        Integer offset = index < 0 ? null : bitmapOffsets.get().get(index);
+        if (offset == null) {
+            return looseIds;
+        }
+        int pos = offset + EwahBitmap.length(bitmaps, offset);
+        int size = bitmaps.getInt(pos);
+        pos += 4;
+        for (int i = 0; i < size; i++) {
+            byte[] id = new byte[ID_BYTES];
+            for (int j = 0; j < ID_BYTES; j++) {
+                id[j] = bitmaps.get(pos + j);
+            }
+            looseIds.add(ObjectCodec.bytesToId(id));
+            pos += ID_BYTES;
+        }
+        return looseIds;
+    }
+
+    /**
+     * 从 pack 里读取对象的编码结果
+     * @param id SHA1 id
+     * @return 编码结果，没有打包过就返回 null
+     */
+    public static byte[] readPacked(String id) {
+        if (!isHex(id)) {
+            return null;
+        }
+        byte[] idBytes = ObjectCodec.idToBytes(id);
+        for (PackFile packFile : getPacks()) {
+            int index = packFile.find(idBytes);
+            if (index >= 0) {
+                return packFile.read(index);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 以流的方式打开 pack 里的对象：完整对象直接在映射上边读边解压，增量对象要先还原出来
+     * @param id SHA1 id
+     * @return 编码结果的流，没有打包过就返回 null
+     */
+    public static InputStream openPacked(String id) {
+        if (!isHex(id)) {
+            return null;
+        }
+        byte[] idBytes = ObjectCodec.idToBytes(id);
+        for (PackFile packFile : getPacks()) {
+            int index = packFile.find(idBytes);
+            if (index >= 0) {
+                return packFile.open(index);
+            }
+        }
+        return null;
+    }
+
+    // 对象是否已经打包
+    public static boolean containsPacked(String id) {
+        if (!isHex(id)) {
+            return false;
+        }
+        byte[] idBytes = ObjectCodec.idToBytes(id);
+        for (PackFile packFile : getPacks()) {
+            if (packFile.find(idBytes) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 在所有 pack 里找前缀匹配并且类型符合的对象
+     * @param prefix id 前缀（至少2位）
+     * @param type   类型标记
+     * @return 匹配的 id
+     */
+    public static List<String> findPackedIdsByPrefix(String prefix, byte type) {
+        List<String> result = new ArrayList<>();
+        if (!isHex(prefix)) {
+            return result;
+        }
+        int firstByte = Integer.parseInt(prefix.substring(0, 2), 16);
+        for (PackFile packFile : getPacks()) {
+            int start = firstByte == 0 ? 0 : packFile.fanout(firstByte - 1);
+            int end = packFile.fanout(firstByte);
+            for (int i = start; i < end; i++) {
+                String id = packFile.getId(i);
+                if (id.startsWith(prefix) && packFile.getEntryType(i) == type) {
+                    result.add(id);
+                }
+            }
+        }
+        return result;
+    }
+
+    // 用户输入的 id 不一定是合法的十六进制
+    private static boolean isHex(String id) {
+        for (int i = 0; i < id.length(); i++) {
+            if (Character.digit(id.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // pack 文件
+    public File getPackFile() {
+        return packFile;
+    }
+
+    // 索引文件
+    public File getIdxFile() {
+        return idxFile;
+    }
+
+    // 位图文件（可能不存在）
+    public File getBitmapFile() {
+        String idxName = idxFile.getName();
+        return join(PACK_DIR, idxName.substring(0, idxName.length() - ".idx".length()) + ".bitmap");
+    }
+
+    // 对象个数
+    public int size() {
+        return count;
+    }
+
+    // 第 index 个（按 id 排序）对象的 id
+    public String getId(int index) {
+        byte[] id = new byte[ID_BYTES];
+        ByteBuffer slice = idx.duplicate();
+        slice.position(idsStart + index * ID_BYTES);
+        slice.get(id);
+        return ObjectCodec.bytesToId(id);
+    }
+
+    /**
+     * 用 fanout 表加二分查找定位 id
+     * @param id 20 字节的 id
+     * @return 在索引里的位置，找不到返回 -1
+     */
+    public int find(byte[] id) {
+        int firstByte = id[0] & 0xFF;
+        int low = firstByte == 0 ? 0 : fanout(firstByte - 1);
+        int high = fanout(firstByte) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareId(mid, id);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // 比较索引里第 index 个 id 和给定 id（按无符号字节）
+    private int compareId(int index, byte[] id) {
+        int base = idsStart + index * ID_BYTES;
+        for (int i = 0; i < ID_BYTES; i++) {
+            int cmp = (idx.get(base + i) & 0xFF) - (id[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    // 第 index 个对象的类型标记（增量对象沿着增量链找到完整对象的类型）
+    private byte getEntryType(int index) {
+        long offset = offset(index);
+        while (true) {
+            byte type = pack.get((int) offset);
+            if (type != TYPE_OFS_DELTA) {
+                return type;
+            }
+            // 跳过数据长度，读出基础对象的相对位置
+            int[] pos = {(int) offset + 1};
+            readVarint(pack, pos);
+            offset -= readVarint(pack, pos);
+        }
+    }
+
+    // 从映射里读取变长整数，pos 更新为下一个位置
+    private static long readVarint(ByteBuffer buffer, int[] pos) {
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(pos[0]++);
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return v;
+    }
+
+    /**
+     * 读取第 index 个对象的编码结果
+     * @param index 在索引里的位置
+     * @return 编码结果
+     */
+    public byte[] read(int index) {
+        return readAt(offset(index));
+    }
+
+    /**
+     * 以流的方式读取第 index 个对象的编码结果
+     * @param index 在索引里的位置
+     * @return 编码结果的流
+     */
+    public InputStream open(int index) {
+        long offset = offset(index);
+        int[] pos = {(int) offset + 1};
+        byte type = pack.get((int) offset);
+        readVarint(pack, pos);
+        if (type == TYPE_OFS_DELTA) {
+            return new ByteArrayInputStream(readAt(offset));
+        }
+        ByteBuffer slice = pack.duplicate();
+        slice.position(pos[0]);
+        return new InflaterInputStream(new ByteBufferInputStream(slice));
+    }
+
+    /**
+     * 读取 pack 里 offset 处的对象，增量对象先读出基础对象再应用增量
+     * @param offset 对象在 pack 里的偏移
+     * @return 编码结果
+     */
+    private byte[] readAt(long offset) {
+        // 类型标记 + 数据长度 + [基础对象的相对位置] + zlib 流
+        int[] pos = {(int) offset + 1};
+        byte type = pack.get((int) offset);
+        long size = readVarint(pack, pos);
+        if (type != TYPE_OFS_DELTA) {
+            return inflate(pos[0], size);
+        }
+        long baseOffset = offset - readVarint(pack, pos);
+        byte[] delta = inflate(pos[0], size);
+        return Delta.apply(readBase(baseOffset), delta);
+    }
+
+    // 读取增量的基础对象，先查缓存（同一条增量链上的对象常常连着读）
+    // 映射上的读取都是绝对位置，可以多个线程同时读，只有缓存需要加锁
+    private byte[] readBase(long baseOffset) {
+        byte[] base;
+        synchronized (deltaBaseCache) {
+            base = deltaBaseCache.get(baseOffset);
+        }
+        if (base == null) {
+            base = readAt(baseOffset);
+            synchronized (deltaBaseCache) {
+                deltaBaseCache.put(baseOffset, base);
+            }
+        }
+        return base;
+    }
+
+    /**
+     * 直接从映射上解压 start 开始的 zlib 流，不用事先知道压缩数据有多长
+     * @param start zlib 流在 pack 里的位置
+     * @param size  解压后的长度
+     * @return 解压结果
+     */
+    private byte[] inflate(int start, long size) {
+        byte[] result = new byte[(int) size];
+        ByteBuffer slice = pack.duplicate();
+        slice.position(start);
+        byte[] chunk = new byte[Math.min(INFLATE_CHUNK, slice.remaining())];
+        Inflater inflater = new Inflater();
+        try {
+            int n = 0;
+            while (n < result.length) {
+                if (inflater.needsInput()) {
+                    int length = Math.min(chunk.length, slice.remaining());
+                    if (length == 0) {
+                        throw new IllegalArgumentException("corrupted pack entry");
+                    }
+                    slice.get(chunk, 0, length);
+                    inflater.setInput(chunk, 0, length);
+                }
+                int inflated = inflater.inflate(result, n, result.length - n);
+                if (inflated == 0 && (inflater.finished() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != result.length) {
+                throw new IllegalArgumentException("corrupted pack entry");
+            }
+            return result;
+        } catch (DataFormatException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * 从映射的当前位置往后读（zlib 流自己知道在哪里结束）
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, Math.min(buffer.remaining(), INFLATE_CHUNK));
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+
+    /**
+     * 增量基础对象的 LRU 缓存，按编码结果的总字节数限制大小
+     */
+    private static class DeltaBaseCache {
+        // 按访问顺序排列，最前面的是最久没用过的
+        private final LinkedHashMap<Long, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final long limit;
+        private long size;
+
+        DeltaBaseCache(long limit) {
+            this.limit = limit;
+        }
+
+        byte[] get(long offset) {
+            return entries.get(offset);
+        }
+
+        void put(long offset, byte[] base) {
+            byte[] previous = entries.put(offset, base);
+            size += base.length - (previous == null ? 0 : previous.length);
+            // 超出限制就淘汰最久没用过的（至少保留刚放进来的这个）
+            Iterator<Map.Entry<Long, byte[]>> it = entries.entrySet().iterator();
+            while (size > limit && entries.size() > 1) {
+                Map.Entry<Long, byte[]> eldest = it.next();
+                size -= eldest.getValue().length;
+                it.remove();
+            }
+        }
+    }
+}
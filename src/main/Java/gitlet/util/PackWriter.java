@@ -0,0 +1,284 @@
+package gitlet.util;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import static gitlet.util.MyUtils.mkdir;
+import static gitlet.util.ObjectCodec.writeVarint;
+import static gitlet.util.Utils.join;
+
+/**
+ * 写一个新的 pack 和它的索引（格式见 PackFile）
+ * 先写到临时文件，写完后用校验和命名：pack-[SHA1].pack，pack-[SHA1].idx
+ * idx 最后写，只要 idx 存在，对应的 pack 一定是完整的
+ * blob 可以写成相对同一路径上一个版本的增量（见 Delta），增量链的深度不超过 pack.depth
+ * 增量基础只保留最近用到的 pack.window 个路径（LRU），内存不随仓库里的文件数增长
+ * 超过 core.bigFileThreshold 的 blob 不打包（pack 整个映射到内存，增量也要把内容读进内存），
+ * 按文件本身的大小算，分块保存的大文件连同它的块都不打包
+ */
+public class PackWriter {
+
+    // 临时 pack 文件
+    private final File tmpPackFile;
+    private final DataOutputStream out;
+    // 已经写入的 id => 偏移
+    private final Map<String, Long> offsets = new HashMap<>();
+    // 当前写到的位置
+    private long offset;
+    private final Deflater deflater;
+    // 增量链的最大深度
+    private final int maxDepth;
+    // 每个对象在增量链上的深度（完整对象为 0）
+    private final Map<String, Integer> depths = new HashMap<>();
+    // 路径 => 这个路径上一次写入的 blob 的 id 和编码结果，作为同一路径下一个版本的增量基础
+    // 按访问顺序排列，超过 pack.window 个就淘汰最久没用到的路径
+    private final LinkedHashMap<String, Map.Entry<String, byte[]>> lastBlobs;
+    // 大文件的阈值
+    private final long bigFileThreshold;
+    // 因为太大没有打包的 blob
+    private final Set<String> looseBlobIds = new HashSet<>();
+
+    public PackWriter() {
+        if (!PackFile.PACK_DIR.exists()) {
+            mkdir(PackFile.PACK_DIR);
+        }
+        try {
+            tmpPackFile = File.createTempFile("tmp_pack_", null, PackFile.PACK_DIR);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpPackFile)));
+            out.write(PackFile.PACK_MAGIC);
+            out.writeInt(PackFile.VERSION);
+            // 对象个数最后再回填
+            out.writeInt(0);
+            offset = PackFile.PACK_HEADER_LENGTH;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        deflater = new Deflater(Config.getCompressionLevel());
+        maxDepth = Config.getInt(Config.PACK_DEPTH, 50);
+        int window = Config.getInt(Config.PACK_WINDOW, 10);
+        lastBlobs = new LinkedHashMap<String, Map.Entry<String, byte[]>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Map.Entry<String, byte[]>> eldest) {
+                return size() > window;
+            }
+        };
+        bigFileThreshold = Config.getInt(Config.CORE_BIG_FILE_THRESHOLD, 32 << 20);
+    }
+
+    // 是否已经写入
+    public boolean contains(String id) {
+        return offsets.containsKey(id);
+    }
+
+    // 是否因为太大没有打包
+    public boolean isLooseBlob(String id) {
+        return looseBlobIds.contains(id);
+    }
+
+    /**
+     * 写入一个对象（重复的 id 只写一次）
+     * @param id      SHA1 id
+     * @param encoded 对象的编码结果
+     */
+    public void add(String id, byte[] encoded) {
+        if (contains(id)) {
+            return;
+        }
+        writeEntry(id, ObjectCodec.getType(encoded), 0, encoded);
+        depths.put(id, 0);
+    }
+
+    /**
+     * 从对象库里读出一个 blob 写入 pack，大文件跳过
+     * @param id       SHA1 id
+     * @param size     文件本身的大小（分块保存的是所有块加起来的大小）
+     * @param filePath blob 所在的路径
+     * @return 是否写入了（大文件返回 false，调用方要保留它和它的块的松散对象）
+     */
+    public boolean addBlob(String id, long size, String filePath) {
+        if (contains(id)) {
+            return true;
+        }
+        if (looseBlobIds.contains(id)) {
+            return false;
+        }
+        byte[] encoded;
+        try (ObjectStream in = ObjectStream.open(id)) {
+            if (size > bigFileThreshold || in.getLength() > bigFileThreshold) {
+                looseBlobIds.add(id);
+                return false;
+            }
+            encoded = Arrays.copyOf(in.getHeader(), ObjectCodec.HEADER_LENGTH + in.getLength());
+            new DataInputStream(in).readFully(encoded, ObjectCodec.HEADER_LENGTH, in.getLength());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        addBlob(id, encoded, filePath);
+        return true;
+    }
+
+    /**
+     * 写入一个 blob，尽量写成相对同一路径上一个版本的增量
+     * @param id       SHA1 id
+     * @param encoded  blob 的编码结果
+     * @param filePath blob 所在的路径
+     */
+    private void addBlob(String id, byte[] encoded, String filePath) {
+        if (contains(id)) {
+            return;
+        }
+        Map.Entry<String, byte[]> base = lastBlobs.put(filePath, new AbstractMap.SimpleImmutableEntry<>(id, encoded));
+        if (base != null && depths.get(base.getKey()) < maxDepth) {
+            String baseId = base.getKey();
+            byte[] delta = Delta.create(base.getValue(), encoded);
+            // 增量要明显比完整对象小才值得
+            if (delta.length < encoded.length / 2) {
+                writeEntry(id, PackFile.TYPE_OFS_DELTA, offset - offsets.get(baseId), delta);
+                depths.put(id, depths.get(baseId) + 1);
+                return;
+            }
+        }
+        writeEntry(id, ObjectCodec.TYPE_BLOB, 0, encoded);
+        depths.put(id, 0);
+    }
+
+    /**
+     * 写入 pack 里的一个对象：类型标记 + 数据长度(varint) + [基础对象的相对位置(varint)] + 数据的 zlib 流
+     * @param id           SHA1 id
+     * @param type         类型标记
+     * @param baseDistance 增量对象到基础对象的距离（完整对象不写）
+     * @param data         完整对象的编码结果，或者增量
+     */
+    private void writeEntry(String id, byte type, long baseDistance, byte[] data) {
+        offsets.put(id, offset);
+        try {
+            ByteArrayOutputStream entry = new ByteArrayOutputStream(data.length / 2 + 16);
+            entry.write(type);
+            writeVarint(entry, data.length);
+            if (type == PackFile.TYPE_OFS_DELTA) {
+                writeVarint(entry, baseDistance);
+            }
+            deflater.reset();
+            DeflaterOutputStream deflaterOut = new DeflaterOutputStream(entry, deflater);
+            deflaterOut.write(data);
+            deflaterOut.finish();
+            entry.writeTo(out);
+            offset += entry.size();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 写完 pack 和 idx，返回 pack 的名字
+     * @return pack-[SHA1]
+     */
+    public String finish() {
+        deflater.end();
+        try {
+            out.close();
+            // 回填对象个数，然后计算校验和
+            try (RandomAccessFile pack = new RandomAccessFile(tmpPackFile, "rw")) {
+                pack.seek(PackFile.PACK_HEADER_LENGTH - 4);
+                pack.writeInt(offsets.size());
+            }
+            byte[] packChecksum = checksum(tmpPackFile);
+            try (OutputStream packOut = new FileOutputStream(tmpPackFile, true)) {
+                packOut.write(packChecksum);
+            }
+            String packName = "pack-" + ObjectCodec.bytesToId(packChecksum);
+            File packFile = join(PackFile.PACK_DIR, packName + ".pack");
+            Files.move(tmpPackFile.toPath(), packFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            writeIdx(join(PackFile.PACK_DIR, packName + ".idx"), packChecksum);
+            return packName;
+        } catch (IOException | NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 写 pack 的 bitmap 文件（格式见 PackFile）
+     * @param packFile pack
+     * @param bitmaps  commit id => 从它可达的对象的位图
+     * @param looseIds commit id => 从它可达、但不在 pack 里的对象
+     */
+    public static void writeBitmaps(PackFile packFile, Map<String, BitSet> bitmaps,
+                                    Map<String, ? extends Collection<String>> looseIds) {
+        try {
+            File tmpBitmapFile = File.createTempFile("tmp_bitmap_", null, PackFile.PACK_DIR);
+            try (DataOutputStream bitmapOut = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmpBitmapFile)))) {
+                bitmapOut.write(PackFile.BITMAP_MAGIC);
+                bitmapOut.writeInt(PackFile.BITMAP_VERSION);
+                bitmapOut.writeInt(bitmaps.size());
+                for (Map.Entry<String, BitSet> entry : bitmaps.entrySet()) {
+                    bitmapOut.writeInt(packFile.find(ObjectCodec.idToBytes(entry.getKey())));
+                    EwahBitmap.write(bitmapOut, entry.getValue());
+                    List<String> ids = new ArrayList<>(looseIds.get(entry.getKey()));
+                    Collections.sort(ids);
+                    bitmapOut.writeInt(ids.size());
+                    for (String id : ids) {
+                        bitmapOut.write(ObjectCodec.idToBytes(id));
+                    }
+                }
+            }
+            Files.move(tmpBitmapFile.toPath(), packFile.getBitmapFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // 写索引：fanout 表 + 排序的 id + 偏移 + 校验和
+    private void writeIdx(File idxFile, byte[] packChecksum) throws IOException, NoSuchAlgorithmException {
+        // 十六进制字符串的顺序和原始字节的无符号顺序一致
+        List<String> sortedIds = new ArrayList<>(offsets.keySet());
+        Collections.sort(sortedIds);
+        int[] fanout = new int[PackFile.FANOUT_SIZE];
+        for (String id : sortedIds) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+        }
+        for (int i = 1; i < PackFile.FANOUT_SIZE; i++) {
+            fanout[i] += fanout[i - 1];
+        }
+        File tmpIdxFile = File.createTempFile("tmp_idx_", null, PackFile.PACK_DIR);
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        try (DataOutputStream idxOut = new DataOutputStream(new DigestOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpIdxFile)), md))) {
+            idxOut.write(PackFile.IDX_MAGIC);
+            idxOut.writeInt(PackFile.VERSION);
+            for (int count : fanout) {
+                idxOut.writeInt(count);
+            }
+            for (String id : sortedIds) {
+                ObjectCodec.writeId(idxOut, id);
+            }
+            for (String id : sortedIds) {
+                idxOut.writeLong(offsets.get(id));
+            }
+            idxOut.write(packChecksum);
+            idxOut.flush();
+            idxOut.write(md.digest());
+        }
+        Files.move(tmpIdxFile.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // 整个文件的 SHA1
+    private static byte[] checksum(File file) throws IOException, NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+        }
+        return md.digest();
+    }
+}
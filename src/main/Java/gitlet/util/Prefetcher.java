@@ -0,0 +1,75 @@
+package gitlet.util;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * 流水线式的预读：按顺序处理一串对象，同时在共用的线程池里提前读取后面的 depth 个，
+ * 处理当前对象的时候后面的读取已经在进行了，读取的等待时间（冷缓存、网络文件系统）大多被藏起来
+ * 读取在后台并行，但交给 action 的顺序和 keys 的顺序完全一样；keys 只在调用线程里遍历
+ */
+public class Prefetcher {
+
+    /**
+     * 按 keys 的顺序读取并处理每一个对象
+     * @param keys   要读取的对象（按处理顺序）
+     * @param loader 读取函数（在线程池里执行，必须是线程安全的）
+     * @param depth  最多提前读取几个，0 表示不预读
+     * @param action 处理函数（在调用线程里执行）
+     * @param <K>    key 类型
+     * @param <T>    对象类型
+     */
+    public static <K, T> void forEach(Iterator<K> keys, Function<K, T> loader, int depth,
+                                      Consumer<? super T> action) {
+        if (depth <= 0) {
+            while (keys.hasNext()) {
+                action.accept(loader.apply(keys.next()));
+            }
+            return;
+        }
+        Deque<Future<T>> window = new ArrayDeque<>();
+        try {
+            while (window.size() < depth && keys.hasNext()) {
+                window.add(load(loader, keys.next()));
+            }
+            while (!window.isEmpty()) {
+                T value = await(window.poll());
+                // 取走一个就补上一个，保持提前 depth 个
+                if (keys.hasNext()) {
+                    window.add(load(loader, keys.next()));
+                }
+                action.accept(value);
+            }
+        } finally {
+            // 提前结束（出错）时，还没用到的读取不再需要
+            for (Future<T> future : window) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    private static <K, T> Future<T> load(Function<K, T> loader, K key) {
+        return MyUtils.submit(() -> loader.apply(key));
+    }
+
+    // 等读取完成，读取时的异常原样抛出
+    private static <T> T await(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (ExecutionException excp) {
+            Throwable cause = excp.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalArgumentException(cause.getMessage());
+        }
+    }
+}
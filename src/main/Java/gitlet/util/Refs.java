@@ -0,0 +1,240 @@
+package gitlet.util;
+
+import gitlet.Repository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.util.Utils.join;
+import static gitlet.util.Utils.readContentsAsString;
+
+/**
+ * 分支：每个分支可以是 refs/heads 下的一个松散文件，也可以是 packed-refs 里的一行，松散文件优先
+ * packed-refs 是文本文件：第一行是 HEADER，后面每行 "commit id 分支名\n"，按分支名（UTF-8 字节）排好序，
+ * 查找一个分支时 mmap 整个文件二分查找，不用读出所有的行
+ * pack-refs 把所有分支写进 packed-refs，再删除松散文件；之后更新分支照旧写松散文件
+ */
+public class Refs {
+
+    public static final File PACKED_REFS_FILE = join(Repository.GITLET_DIR, "packed-refs");
+
+    private static final byte[] HEADER = "# pack-refs with: sorted\n".getBytes(StandardCharsets.UTF_8);
+    // 每行分支名前面的部分：commit id 40 + 空格 1
+    private static final int NAME_OFFSET = ObjectCodec.ID_BYTES * 2 + 1;
+
+    // 当前进程里 mmap 的 packed-refs（从 HEADER 之后开始），文件不存在是空的，重写之后重新加载
+    private static ByteBuffer packed;
+
+    /**
+     * 分支当前的 commit id
+     * @param name 分支名
+     * @return commit id，分支不存在为 null
+     */
+    public static String read(String name) {
+        File looseFile = getLooseFile(name);
+        if (looseFile.isFile()) {
+            return readContentsAsString(looseFile);
+        }
+        return lookupPacked(name);
+    }
+
+    /**
+     * 更新（或创建）分支：写松散文件，原子替换
+     * @param name     分支名
+     * @param commitId commit id
+     */
+    public static void write(String name, String commitId) {
+        WriteTransaction.replace(getLooseFile(name), commitId.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 删除分支：packed-refs 里有就先重写 packed-refs，再删除松散文件
+     * （反过来的话，中途崩溃会让 packed-refs 里旧的 commit 重新露出来）
+     * @param name 分支名
+     * @return 分支是否存在
+     */
+    public static boolean delete(String name) {
+        boolean exists = false;
+        if (lookupPacked(name) != null) {
+            SortedMap<String, String> packedRefs = readPacked();
+            packedRefs.remove(name);
+            writePacked(packedRefs);
+            exists = true;
+        }
+        File looseFile = getLooseFile(name);
+        if (looseFile.isFile()) {
+            deleteLooseFile(looseFile);
+            exists = true;
+        }
+        return exists;
+    }
+
+    /**
+     * 所有分支
+     * @return 分支名 => commit id（按分支名排序）
+     */
+    @SuppressWarnings("ConstantConditions")
+    public static SortedMap<String, String> readAll() {
+        SortedMap<String, String> refs = new TreeMap<>(readPacked());
+        // 松散文件覆盖 packed-refs 里的同名分支
+        for (File looseFile : Repository.BRANCH_HEADS_DIR.listFiles(File::isFile)) {
+            refs.put(looseFile.getName(), readContentsAsString(looseFile));
+        }
+        return refs;
+    }
+
+    /**
+     * 把所有分支写进 packed-refs，再删除内容没有变的松散文件
+     */
+    @SuppressWarnings("ConstantConditions")
+    public static void pack() {
+        SortedMap<String, String> refs = readAll();
+        writePacked(refs);
+        for (File looseFile : Repository.BRANCH_HEADS_DIR.listFiles(File::isFile)) {
+            // 打包之后又被改过的分支留着松散文件
+            if (readContentsAsString(looseFile).equals(refs.get(looseFile.getName()))) {
+                deleteLooseFile(looseFile);
+            }
+        }
+    }
+
+    private static File getLooseFile(String name) {
+        return join(Repository.BRANCH_HEADS_DIR, name);
+    }
+
+    private static void deleteLooseFile(File looseFile) {
+        if (!looseFile.delete()) {
+            throw new IllegalArgumentException("rm: " + looseFile.getPath() + ": Failed to delete.");
+        }
+    }
+
+    // packed-refs 里的所有分支
+    private static SortedMap<String, String> readPacked() {
+        ByteBuffer buffer = getPacked();
+        SortedMap<String, String> refs = new TreeMap<>();
+        int lineStart = 0;
+        while (lineStart < buffer.limit()) {
+            int lineEnd = lineEnd(buffer, lineStart);
+            refs.put(getString(buffer, lineStart + NAME_OFFSET, lineEnd), getString(buffer, lineStart,
+                    lineStart + NAME_OFFSET - 1));
+            lineStart = lineEnd + 1;
+        }
+        return refs;
+    }
+
+    // 在 packed-refs 里二分查找分支：取中间位置所在的那一行比较，范围的两端始终是行首
+    private static String lookupPacked(String name) {
+        ByteBuffer buffer = getPacked();
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = buffer.limit();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int lineStart = mid;
+            while (lineStart > low && buffer.get(lineStart - 1) != '\n') {
+                lineStart--;
+            }
+            int lineEnd = lineEnd(buffer, lineStart);
+            int cmp = compareName(key, buffer, lineStart + NAME_OFFSET, lineEnd);
+            if (cmp == 0) {
+                return getString(buffer, lineStart, lineStart + NAME_OFFSET - 1);
+            }
+            if (cmp < 0) {
+                high = lineStart;
+            } else {
+                low = lineEnd + 1;
+            }
+        }
+        return null;
+    }
+
+    private static ByteBuffer getPacked() {
+        if (packed == null) {
+            packed = loadPacked();
+        }
+        return packed;
+    }
+
+    private static ByteBuffer loadPacked() {
+        if (!PACKED_REFS_FILE.exists()) {
+            return ByteBuffer.allocate(0);
+        }
+        try (FileChannel channel = FileChannel.open(PACKED_REFS_FILE.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER.length || size > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Corrupted packed-refs.");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            for (int i = 0; i < HEADER.length; i++) {
+                if (buffer.get(i) != HEADER[i]) {
+                    throw new IllegalArgumentException("Corrupted packed-refs.");
+                }
+            }
+            buffer.position(HEADER.length);
+            return buffer.slice();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // 按分支名的 UTF-8 字节排序写出，原子替换 packed-refs
+    private static void writePacked(SortedMap<String, String> refs) {
+        List<byte[]> names = new ArrayList<>();
+        for (String name : refs.keySet()) {
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        names.sort(Refs::compareBytes);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(HEADER, 0, HEADER.length);
+        for (byte[] name : names) {
+            byte[] commitId = refs.get(new String(name, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+            out.write(commitId, 0, commitId.length);
+            out.write(' ');
+            out.write(name, 0, name.length);
+            out.write('\n');
+        }
+        WriteTransaction.replace(PACKED_REFS_FILE, out.toByteArray());
+        packed = null;
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int from) {
+        int pos = from;
+        while (pos < buffer.limit() && buffer.get(pos) != '\n') {
+            pos++;
+        }
+        if (pos - from <= NAME_OFFSET) {
+            throw new IllegalArgumentException("Corrupted packed-refs.");
+        }
+        return pos;
+    }
+
+    private static String getString(ByteBuffer buffer, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // 按无符号字节比较 key 和 buffer 里 [from, to) 的分支名
+    private static int compareName(byte[] key, ByteBuffer buffer, int from, int to) {
+        int length = Math.min(key.length, to - from);
+        for (int i = 0; i < length; i++) {
+            int cmp = (key[i] & 0xFF) - (buffer.get(from + i) & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return key.length - (to - from);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        return compareName(a, ByteBuffer.wrap(b), 0, b.length);
+    }
+}
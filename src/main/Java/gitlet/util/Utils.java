@@ -20,10 +20,10 @@ public class Utils {
     /* SHA-1 HASH VALUES. */
 
     /**
-     * ɶֵƴӺ SHA-1 ϣֵ
-     * Щֵϵַֽ
-     * @param vals ַֽ
-     * @return õ SHA-1 ϣֵʮַ
+     * 计算由多个值拼接后的 SHA-1 哈希值。
+     * 这些值可以是任意组合的字节数组和字符串。
+     * @param vals 可以是任意数量的字节数组和字符串
+     * @return 计算得到的 SHA-1 哈希值的十六进制字符串
      */
     public static String sha1(Object... vals) {
         try {
@@ -80,7 +80,7 @@ public class Utils {
 
     /* READING AND WRITING FILE CONTENTS */
 
-    // ȡļݣжǲͨļǱǾbyte
+    // 读取文件内容，判断是不是普通文件，不是报错是就输出byte流
     public static byte[] readContents(File file) {
         if (!file.isFile()) {
             throw new IllegalArgumentException("must be a normal file");
@@ -92,28 +92,28 @@ public class Utils {
         }
     }
 
-    // ȡfile,UTF-8 װString
+    // 读取file内容,基于UTF-8 封装成String
     public static String readContentsAsString(File file) {
         return new String(readContents(file), StandardCharsets.UTF_8);
     }
 
 
     /**
-     * contentsдfile
-     * @param file ҪдļֻļļУ
-     * @param contents Ҫдݣַַ
+     * 把contents的内容写到file
+     * @param file 要写入的文件（只能是文件，不可以是文件夹）
+     * @param contents 要写入的内容，可以是字符串或者字符数组
      */
     public static void writeContents(File file, Object... contents) {
         try {
-            // fileļо
+            // file是文件夹就有问题了
             if (file.isDirectory()) {
                 throw
                     new IllegalArgumentException("cannot overwrite directory");
             }
-            // 
+            // 创建缓冲流
             BufferedOutputStream str =
                 new BufferedOutputStream(Files.newOutputStream(file.toPath()));
-            // contentsֱֽд룬ַתд
+            // 遍历contents，是字节数组直接写入，是字符串转换后再写入
             for (Object obj : contents) {
                 if (obj instanceof byte[]) {
                     str.write((byte[]) obj);
@@ -182,10 +182,10 @@ public class Utils {
     /* OTHER FILE UTILITIES */
 
     /**
-     * ݴĸļмԼothersڸļ´ļ firstobjectsļУothers/a/b.txt
-     * objectļ洴 a/b.txt Ȼ󷵻
-     * @param first ļ·
-     * @param others ļ
+     * 根据传来的父文件夹件，以及others，在该文件夹下创建文件。例如 first是objects文件夹，others是/a，/b.txt，
+     * 就是在object文件夹下面创建 a/b.txt 然后返回这个对象
+     * @param first 父文件夹路径
+     * @param others 其他文件
      * @return
      */
     public static File join(String first, String... others) {
@@ -193,10 +193,10 @@ public class Utils {
     }
 
     /**
-     * ݴĸļмԼothersڸļ´ļ firstobjectsļУothers/a/b.txt
-     * objectļ洴 a/b.txt Ȼ󷵻
-     * @param first ļ
-     * @param others ļ
+     * 根据传来的父文件夹件，以及others，在该文件夹下创建文件。例如 first是objects文件夹，others是/a，/b.txt，
+     * 就是在object文件夹下面创建 a/b.txt 然后返回这个对象
+     * @param first 父文件夹
+     * @param others 其他文件
      * @return
      */
      public static File join(File first, String... others) {
@@ -230,9 +230,9 @@ public class Utils {
     }
 
     /**
-     * ӡmessage
-     * @param msg ҪӡϢ
-     * @param args   ҪӡĲ
+     * 打印message
+     * @param msg 要打印的消息
+     * @param args   要打印的参数
      */
     public static void message(String msg, Object... args) {
         System.out.printf(msg, args);
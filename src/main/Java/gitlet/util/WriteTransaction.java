@@ -0,0 +1,182 @@
+package gitlet.util;
+
+import gitlet.Repository;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+import static gitlet.util.MyUtils.mkdir;
+import static gitlet.util.MyUtils.parallelForEach;
+import static gitlet.util.Utils.writeContents;
+
+/**
+ * 写事务：保证断电、崩溃之后，分支要么还指向原来的 commit，要么指向新的 commit 且它用到的对象都已经完整落盘
+ * 1. 事务中新写的对象先写进临时文件（不 fsync），用到的已有对象（add 时写的 blob）也记下来
+ * 2. 提交时一起 fsync 所有对象（在线程池里并行，文件系统可以把它们合并进同一次日志提交），
+ *    临时文件改名为对象文件，每个涉及的目录再 fsync 一次
+ * 3. 最后按顺序发布分支、index：写临时文件、fsync、原子改名替换、fsync 所在目录
+ * 不在事务中时，对象照旧直接写
+ */
+public class WriteTransaction implements AutoCloseable {
+
+    // 当前进程里正在进行的事务，没有为 null
+    private static WriteTransaction current;
+
+    // 对象文件 => 还没改名的临时文件
+    private final Map<File, File> objects = new LinkedHashMap<>();
+    // 已经存在、提交前要落盘的对象文件
+    private final Set<File> existing = new LinkedHashSet<>();
+    // 要发布的文件 => 内容（按加入的顺序发布）
+    private final Map<File, byte[]> published = new LinkedHashMap<>();
+    private boolean committed;
+
+    private WriteTransaction() {
+    }
+
+    /**
+     * 开始一个事务，用 try-with-resources 包起来，没有提交就结束时丢弃写了一半的对象
+     * @return WriteTransaction
+     */
+    public static WriteTransaction begin() {
+        if (current != null) {
+            throw new IllegalArgumentException("A write transaction is already in progress.");
+        }
+        current = new WriteTransaction();
+        return current;
+    }
+
+    /**
+     * 写对象文件：事务中先写临时文件，提交时才改名；不在事务中直接写
+     * @param file  对象文件
+     * @param bytes 编码（压缩）后的内容
+     */
+    public static void writeObject(File file, byte[] bytes) {
+        File dir = file.getParentFile();
+        if (!dir.exists()) {
+            mkdir(dir);
+        }
+        if (current == null) {
+            writeContents(file, bytes);
+            return;
+        }
+        // 同样的对象（比如两个一样的子目录）只写一次
+        if (current.objects.containsKey(file)) {
+            return;
+        }
+        try {
+            File tmpFile = File.createTempFile("tmp_obj_", null, dir);
+            writeContents(tmpFile, bytes);
+            current.objects.put(file, tmpFile);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * 已经写好的对象文件，提交时和新对象一起落盘
+     * @param file 对象文件（不存在的忽略，比如已经打包了）
+     */
+    public void sync(File file) {
+        if (file.isFile()) {
+            existing.add(file);
+        }
+    }
+
+    /**
+     * 提交时发布的文件（分支、index），对象都落盘之后才原子替换
+     * @param file     目标文件
+     * @param contents 新的内容
+     */
+    public void publish(File file, byte[] contents) {
+        published.put(file, contents);
+    }
+
+    /**
+     * 提交：对象落盘、改名，再依次发布文件
+     */
+    public void commit() {
+        List<File> files = new ArrayList<>(objects.values());
+        files.addAll(existing);
+        parallelForEach(files, WriteTransaction::force);
+        Set<File> dirs = new LinkedHashSet<>();
+        for (Map.Entry<File, File> entry : objects.entrySet()) {
+            move(entry.getValue(), entry.getKey());
+            dirs.add(entry.getKey().getParentFile());
+        }
+        for (File file : existing) {
+            dirs.add(file.getParentFile());
+        }
+        for (File dir : dirs) {
+            force(dir);
+        }
+        objects.clear();
+        for (Map.Entry<File, byte[]> entry : published.entrySet()) {
+            replace(entry.getKey(), entry.getValue());
+        }
+        committed = true;
+    }
+
+    // 没有提交就结束（出错了）：删除临时文件，已有的文件都没动过
+    @Override
+    public void close() {
+        if (!committed) {
+            for (File tmpFile : objects.values()) {
+                tmpFile.delete();
+            }
+        }
+        current = null;
+    }
+
+    /**
+     * 原子地替换文件内容：写临时文件、fsync，改名替换，再 fsync 所在目录
+     * @param file     目标文件
+     * @param contents 新的内容
+     */
+    public static void replace(File file, byte[] contents) {
+        // 临时文件放在 .gitlet 下（不放在 refs/heads 里，崩溃时留下的临时文件不会被当成分支）
+        File tmpFile;
+        try {
+            tmpFile = File.createTempFile("tmp_ref_", null, Repository.GITLET_DIR);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        try (FileChannel channel = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(contents);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        } catch (IOException excp) {
+            tmpFile.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        move(tmpFile, file);
+        force(file.getAbsoluteFile().getParentFile());
+    }
+
+    private static void move(File from, File to) {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    // fsync 文件或目录（有的系统不能打开目录，改名已经完成了，忽略即可）
+    private static void force(File file) {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException excp) {
+            if (!file.isDirectory()) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+    }
+}